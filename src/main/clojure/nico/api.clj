@@ -11,7 +11,7 @@
 	    [nico.scrape :as ns]
             [nico.string :as s])
   (:import [java.io BufferedReader InputStreamReader IOException OutputStreamWriter]
-           [java.net Socket]))
+           [nico.net AlertConnection]))
 
 (defn get-alert-status [email passwd]
   (letfn [(get-ticket [email passwd] ;; 認証APIでチケットを得る
@@ -120,10 +120,9 @@
         cc (ca/chan)
         cc-fetcher (ca/chan (ca/dropping-buffer 64))]
     (letfn [(listen [alert-status]
-              (with-open [sock (doto (Socket. ^String (:addr alert-status) ^int (:port alert-status))
-                                 (.setSoTimeout 30000))
-                          wtr (OutputStreamWriter. (.getOutputStream sock))
-                          ^BufferedReader rdr (BufferedReader. (InputStreamReader. (.getInputStream sock) "UTF8"))]
+              (with-open [^AlertConnection conn (net/alert-connection (:addr alert-status) (:port alert-status) 30000)
+                          wtr (OutputStreamWriter. (.out conn))
+                          ^BufferedReader rdr (BufferedReader. (InputStreamReader. (.in conn) "UTF8"))]
                 (ca/>!! cc {:cmd :connected})
                 (let [q (format "<thread thread=\"%s\" version=\"20061206\" res_from=\"-1\"/>\0"
                                 (:thrd alert-status))] ; res_fromを-1200にすると、全ての番組を取得するらしい。
@@ -133,7 +132,7 @@
                     -1 (do
                          (log/info "******* CONNECTION CLOSED *******")
                          :disconnected)
-                    0  (let [received (System/currentTimeMillis)]
+                    0  (let [received (net/now)]
                          (if-let [[id cid uid] (map s/nstr (parse-chat-str (.toString s)))]
                            (ca/>!! cc {:cmd :pgm :pid (str "lv" id) :cid cid :uid uid :received received})
                            (log/debugf "it isn't chat: %s" s))
@@ -160,7 +159,7 @@
             (when (and pid cid received)
               (when-let [pgm (ns/scrape-pgm pid cid received)]
                 (ca/>! oc-db {:cmd :add-pgms :pgms (list pgm) :force-search true})
-                (Thread/sleep FETCH-INTERVAL)))
+                (net/sleep FETCH-INTERVAL)))
             (recur (ca/<! cc-fetcher)))
           (log/info "Closed API fetcher channel")))
 
@@ -224,17 +223,17 @@
                                   (connect (-> (:as user) vals first) retry))))
               :connected (do
                            (ca/>! oc-ui {:status :started-api})
-                           (recur user (assoc rate :ch (ca/timeout UPDATE-INTERVAL)) listener))
+                           (recur user (assoc rate :ch (net/timeout UPDATE-INTERVAL)) listener))
               :pgm (let [{:keys [pid cid uid received]} c]
                      (when (contains? (:comms user) cid)
                        (ca/>! cc-fetcher c))
                      (recur user (update-in rate [:rate] conj received) listener)))
 
             (cond ;; cがnilの場合はチャネルを見る。
-             (= ch (:ch rate)) (let [now (System/currentTimeMillis)
+             (= ch (:ch rate)) (let [now (net/now)
                                      rate-updated (filter #(> % (- now 60000)) (:rate rate))]
                                  (ca/>! oc-ui {:status :rate-api :rate (count rate-updated)})
-                                 (recur user {:rate rate-updated :ch (ca/timeout UPDATE-INTERVAL)} listener))
+                                 (recur user {:rate rate-updated :ch (net/timeout UPDATE-INTERVAL)} listener))
              (not= ch cc) (do
                             (log/warn "other channel closed: " (pr-str ch))
                             (recur user rate listener))
@@ -22,6 +22,20 @@
   {:mode (if (= :windows (cf/system)) :rl-bt :rl-tb)
    :column 1 :opacity 0.9})
 
+(def PGM-RETENTION-MSEC (* 60 60000)) ; 終了が伝えられなくても、最終更新からこの時間(ミリ秒)が過ぎた番組はDBから削除する
+
+(defn default-rss-config []
+  {:rate 2.0   ; RSSリクエストの平均頻度(回/秒)。以前の逐次取得の間隔(500ミリ秒)を超えない
+   :burst 7    ; 連続して発行できるリクエスト数。カテゴリ数と同じにしている
+   :pages 3    ; 一つのカテゴリについて並行に取得する最大ページ数
+   :incremental true ; 既知の番組だけのページに達したらそのカテゴリの取得を打ち切る
+   :full-cycle 10    ; incrementalでもこの回数に1回は全ページ取得する
+   :full-interval-sec 600 ; incrementalでも前回からこの秒数が過ぎたら全ページ取得する
+   :target-new 10    ; 1回の取得でカテゴリごとに見つけたい新しい番組数
+   :min-wait-sec 30  ; 取得サイクルの間隔の下限
+   :max-wait-sec 300 ; 取得サイクルの間隔の上限
+   :official-interval-sec 600}) ; 公式放送のRSSの取得間隔
+
 (def DEFAULT-BROWSER-CONFIG [:default :default])
 (defn default-browsers-config [] [DEFAULT-BROWSER-CONFIG]) ; 1.6迄は [[:default :default true]] だった。
 
@@ -37,6 +51,9 @@
 
 (defn- ^File pref-file [] (File. (pref-dir) "config.clj"))
 
+(defn ^File snapshot-file [] (File. (pref-dir) "pgms.db")) ; 次回起動時に復元する番組情報DB
+(defn ^File thumbnail-dir [] (File. (pref-dir) "thumbnails")) ; 縮小済みのサムネイルのキャッシュ
+
 (defn- init-config []
   (let [e (GraphicsEnvironment/getLocalGraphicsEnvironment)
 	p (.getCenterPoint e)]
@@ -46,6 +63,7 @@
      :version CONFIG-VERSION
      :alert (default-alert-config) ; 1.6から新しく設定可能になった。
      :browsers (default-browsers-config)
+     :rss (default-rss-config) ; 1.7.6から新しく設定可能になった。
      :channels []}))
 
 (defn- uuid-str [] (.toString (UUID/randomUUID)))
@@ -81,12 +99,15 @@
                   chs (:channels cfg)]
               (assoc ncfg :channels (or chs (vec (map check-old-channel tabs))))))
           (check-old-browsers [cfg]
-            (assoc cfg :browsers (vec (map check-old-browser (:browsers cfg)))))]
+            (assoc cfg :browsers (vec (map check-old-browser (:browsers cfg)))))
+          (check-old-rss [cfg] ; 1.7.5までは存在しない
+            (assoc cfg :rss (merge (default-rss-config) (:rss cfg))))]
     (-> cfg
         check-old-version
         check-old-alert
         check-old-channels
-        check-old-browsers)))
+        check-old-browsers
+        check-old-rss)))
 
 (defn init-user-channel []
   {:id (uuid-str) :type :comm :email nil :passwd nil :alert false})
@@ -7,6 +7,8 @@
             [nico.api :as api]
             [nico.config :as config]
             [nico.db :as db]
+            [nico.image :as img]
+            [nico.net :as net]
             [nico.rss :as rss]
             [nico.status :as status]
             [nico.ui.about-dlg :as nua]
@@ -75,6 +77,16 @@
   {:pre [(vector? v) (<= 0 idx)]}
   (vec (concat (subvec v 0 idx) (subvec v (inc idx)))))
 
+(defn- init-capture!
+  "システムプロパティnico.net.recordにパスが指定されていれば通信をそのパスに記録し、
+   nico.net.replayにパスが指定されていれば記録された通信を再生する。
+   再生速度はnico.net.replay.speedで指定する(既定値は1.0)。"
+  []
+  (if-let [path (System/getProperty "nico.net.replay")]
+    (net/start-replay! path (Double/parseDouble (System/getProperty "nico.net.replay.speed" "1.0")))
+    (when-let [path (System/getProperty "nico.net.record")]
+      (net/start-recording! path))))
+
 (defn -main []
   (sc/native!)
   (sl/configure-logging-swing 200 {"handlers" "java.util.logging.ConsoleHandler"
@@ -84,6 +96,8 @@
                                    "slide.level" "ALL"
                                    "com.github.sgr.level" "ALL"
                                    "java.util.logging.ConsoleHandler.level" "INFO"})
+  (init-capture!)
+  (img/open-disk-cache! (config/thumbnail-dir))
   (let [cc (ca/chan)
         frame (main-frame/frame)
         menu-bar (menu/menu-bar (fn [e] (-> (nua/about-dlg)
@@ -91,12 +105,12 @@
                                             sc/show!))
                                 (fn [e] (main-frame/close! frame))
                                 (fn [e] (ca/>!! cc {:cmd :edit-prefs})))
+        cfg (config/load-config)
         cc-ui (status/boot frame) ;; cc-ui は以下のチャネルからの状態情報をUIに反映
-        cc-db (db/boot cc-ui) ;; db -> ui
-        cc-rss (rss/boot cc-ui cc-db) ;; rss -> ui, db
+        cc-db (db/boot cc-ui (config/snapshot-file)) ;; db -> ui
+        cc-rss (rss/boot cc-ui cc-db (:rss cfg)) ;; rss -> ui, db
         cc-api (api/boot cc-ui cc-db) ;; api -> ui, db
-        {:keys [wpanel spanel search-btn add-ch-btn l-search-status]} (sc/group-by-id frame)
-        cfg (config/load-config)]
+        {:keys [wpanel spanel search-btn add-ch-btn l-search-status]} (sc/group-by-id frame)]
 
     (ca/>!! cc-ui {:status :set-browsers :browsers (:browsers cfg)})
 
@@ -285,6 +299,9 @@
                 (log/info "Main control channel has been closed. Closing other control channels now...")
                 (ca/close! cc-rss)
                 (ca/close! cc-api)
+                (let [done (ca/chan)] ;; 次回起動時のために番組情報を書き出させる
+                  (ca/>! cc-db {:cmd :snapshot :done done})
+                  (ca/alts! [done (ca/timeout 10000)]))
                 (ca/close! cc-db)
                 (ca/close! cc-ui)
                 (when (pos? (count async-ops))
@@ -292,6 +309,8 @@
                 (da/close-alert)
                 (log/info "Store the config now...")
                 (config/store-config cfg)
+                (img/close-disk-cache!)
+                (net/stop-capture!)
                 (System/exit 0)))))))
 
     ;; アラーターの初期化
@@ -1,26 +1,82 @@
 ;; -*- coding: utf-8-unix -*-
 (ns nico.db
   (:require [clojure.core.async :as ca]
-            [clojure.data :as cd]
             [clojure.java.jdbc :as jdbc]
             [clojure.set :as set]
             [clojure.string :as s]
             [clojure.tools.logging :as log]
             [input-parser.cond-parser :as cp]
+            [nico.config :as config]
             [nico.image :as img]
-            [nico.pgm :as pgm])
-  (:import [java.sql DriverManager]
+            [nico.net :as net]
+            [nico.pgm :as pgm]
+            [nico.string :as st])
+  (:import [java.io File]
+           [java.sql Connection DriverManager PreparedStatement]
+           [java.util ArrayList BitSet]
+           [java.util.concurrent ArrayBlockingQueue]
+           [java.util.concurrent.atomic AtomicLong]
+           [java.util.regex Pattern]
+           [nico.db AhoCorasick]
            [org.apache.commons.lang3.time FastDateFormat]))
 
 ;; DDL ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
-(def ^{:private true} CONN-URI "jdbc:sqlite::memory:") ;; "jdbc:sqlite:file::memory:?cache=shared"
+;; 読み出し用の接続と共有するため、bootごとに名前を付けた共有キャッシュのメモリDBを用いる
+(def ^{:private true} CONN-URI "jdbc:sqlite:file:nicoalert%d?mode=memory&cache=shared")
+
+(let [n (atom 0)]
+  (defn- conn-uri [] (format CONN-URI (swap! n inc))))
 (def ^{:private true} CCOL "ccol") ;; concatenated column
+(def ^{:private true} FTS-COLS [:title :description :owner_name :category :comm_name]) ;; キーワード検索の対象
+
+(def ^{:private true} KANA-FOLD true) ;; キーワード検索でカタカナとひらがなを区別しない
+(def ^{:private true} SCHEMA-VERSION 1) ;; スナップショットの互換性確認用。テーブル定義やfts-textを変えたら上げる
+
+;; ユーザーチャネルの参加コミュニティ。接続ごとのテンポラリテーブルでよい
+(def ^{:private true} TEMP-DDL "CREATE TEMP TABLE IF NOT EXISTS chcomms (ch VARCHAR(36), comm_id VARCHAR(10), PRIMARY KEY (ch, comm_id))")
+
+(defn- search-text
+  "キーワード検索で比較する文字列。全角半角、大文字小文字(およびKANA-FOLDならカタカナひらがな)を区別しないよう正規化する。"
+  [^String str]
+  (st/normalize str KANA-FOLD))
+
+(defn- fts-text
+  "文字列を正規化し、全文検索テーブル用に1文字ずつ空白を前置したトークン列に変換する。
+   連続したトークンのフレーズ検索が部分文字列の検索になる。またどの文字も空白の直後に来るので、LIKEでも文字単位で比較できる。
+   simpleトークナイザが区切り文字とみなすASCIIの英数字以外の文字は私用領域の文字(U+E000 + 文字コード)に置き換える。"
+  [^String str]
+  (when-let [^String str (search-text str)]
+    (let [n (.length str)
+          sb (StringBuilder. (* 2 n))]
+      (loop [i 0]
+        (if (< i n)
+          (let [c (.codePointAt str i)]
+            (.append sb \space)
+            (cond
+              (or (<= 0x30 c 0x39) (<= 0x61 c 0x7A)) (.appendCodePoint sb c)
+              (<= 0x41 c 0x5A) (.appendCodePoint sb (+ c 0x20))
+              (< c 0x80) (.appendCodePoint sb (+ c 0xE000))
+              :else (.appendCodePoint sb c))
+            (recur (+ i (Character/charCount c))))
+          (.toString sb))))))
+
+(defn- docid
+  "番組IDから全文検索テーブルのdocidを求める。"
+  [^String id]
+  (if (re-matches #"lv\d{1,18}" id)
+    (Long/parseLong (subs id 2))
+    (- (.hashCode id) 0x100000000))) ; 番組ID由来のものと重ならないよう負にする
+
+(defn- fts-row [pgm]
+  (reduce (fn [m k] (assoc m k (fts-text (get pgm k))))
+          {:docid (docid (:id pgm)) :id (:id pgm)} FTS-COLS))
 
 (defn- create-db! [db]
   (letfn [(varchar [len] (format "VARCHAR(%d)" len))]
     (jdbc/db-do-commands
      db true
+     "PRAGMA auto_vacuum = INCREMENTAL" ; テーブル作成前に設定する必要がある
      (jdbc/create-table-ddl
       :pgms
       [:id (varchar 12) "PRIMARY KEY"]
@@ -38,95 +94,431 @@
       [:comm_name (varchar 64)]
       [:fetched_at :timestamp]
       [:updated_at :timestamp]
-      :table-spec "WITHOUT ROWID"))
-    "CREATE INDEX idx_pgms_id ON pgms(id)"
-    "CREATE INDEX idx_pgms_title ON pgms(title)"
-    "CREATE INDEX idx_pgms_open_time ON pgms(open_time)"
-    "CREATE INDEX idx_pgms_start_time ON pgms(start_time)"
-    "CREATE INDEX idx_pgms_description ON pgms(description)"
-    "CREATE INDEX idx_pgms_category ON pgms(category)"
-    "CREATE INDEX idx_pgms_owner_name ON pgms(owner_name)"
-    "CREATE INDEX idx_pgms_comm_id ON pgms(comm_id)"
-    "CREATE INDEX idx_pgms_comm_name ON pgms(comm_name)"
-    "CREATE INDEX idx_pgms_updated_at ON pgms(updated_at)"
-    "PRAGMA journal_mode = OFF"))
+      :table-spec "WITHOUT ROWID")
+     "CREATE INDEX idx_pgms_id ON pgms(id)"
+     "CREATE INDEX idx_pgms_title ON pgms(title)"
+     "CREATE INDEX idx_pgms_open_time ON pgms(open_time)"
+     "CREATE INDEX idx_pgms_start_time ON pgms(start_time)"
+     "CREATE INDEX idx_pgms_description ON pgms(description)"
+     "CREATE INDEX idx_pgms_category ON pgms(category)"
+     "CREATE INDEX idx_pgms_owner_name ON pgms(owner_name)"
+     "CREATE INDEX idx_pgms_comm_id ON pgms(comm_id)"
+     "CREATE INDEX idx_pgms_comm_name ON pgms(comm_name)"
+     "CREATE INDEX idx_pgms_updated_at ON pgms(updated_at)"
+     TEMP-DDL
+     ;; キーワード検索用の全文検索テーブル。docidは番組IDの数字部分、各カラムはfts-textで変換したもの。
+     (str "CREATE VIRTUAL TABLE pgms_fts USING fts4(id, " (s/join ", " (map name FTS-COLS)) ", notindexed=id)")
+     (str "PRAGMA user_version = " SCHEMA-VERSION))
+    ;; 結果を返すPRAGMAはバッチに含められない
+    (jdbc/query db ["PRAGMA journal_mode = OFF"])))
 
 ;; Query generator ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
 (def ^{:private true} prefixes #{:not})
 (def ^{:private true} infixes #{:and :or})
 
-(defn where-clause [q-str]
-  (letfn [(like [word col-str] (format "(%s LIKE '%%%s%%')" col-str word))
-          (cname [kwd] (s/upper-case (name kwd)))
-          (where-clause-aux [q col-str]
+(defn- fold-query
+  "検索クエリq-strを解析し、各単語をleaf-fnで、演算子(:not :and :or)とその引数の結果をop-fnで変換した結果を返す。"
+  [q-str leaf-fn op-fn]
+  (letfn [(cname [kwd] (s/upper-case (name kwd)))
+          (compile-aux [q]
             (cond
-             (not (list? q)) (-> (if (keyword? q) (name q) q)
-                                 (like col-str))
+             (not (list? q)) (leaf-fn (if (keyword? q) (name q) q))
              (< 1 (count q)) (let [op (first q)]
                                (cond
                                 (prefixes op) (if (= 1 (count (rest q)))
-                                                (format "(%s %s)" (cname op)
-                                                        (where-clause-aux (second q) col-str))
+                                                (op-fn op [(compile-aux (second q))])
                                                 (throw (IllegalArgumentException.
                                                         (format "%s allows one argument only: %s"
                                                                 (cname op) (pr-str q)))))
-                                (infixes op)  (->> (rest q)
-                                                   (map #(where-clause-aux % col-str))
-                                                   (s/join (format " %s " (cname op)))
-                                                   (format "(%s)"))
+                                (infixes op)  (op-fn op (doall (map compile-aux (rest q))))
                                 :else (throw (IllegalArgumentException.
                                               (str "unsupported operator: " (cname op))))))
              :else (throw (IllegalArgumentException.
                            (format "malformed query(%d): %s" (count q) (pr-str q))))))]
     (try
       (when-let [q (cp/parse q-str)]
-        (where-clause-aux q CCOL))
+        (compile-aux q))
       (catch Exception e
         (log/warnf e "failed parsing [%s]" q-str)))))
 
-(defn- where-comms-clause [comms]
-  (if (pos? (count comms))
-    (->> comms
-         (map #(str \' % \'))
-         (s/join ",")
-         (format "comm_id IN (%s)"))
-    "comm_id IN ('NO_COMMUNITY')"))
+(defn- compile-query
+  "検索クエリq-strを解析し、各単語をleaf-fnで条件式にしたWHERE句を返す。"
+  [q-str leaf-fn]
+  (fold-query q-str leaf-fn
+              (fn [op args]
+                (let [cname (s/upper-case (name op))]
+                  (if (prefixes op)
+                    (format "(%s %s)" cname (first args))
+                    (format "(%s)" (s/join (format " %s " cname) args)))))))
+
+(defn- like [word col-str] (format "(%s LIKE '%%%s%%')" col-str word))
+
+(defn where-clause [q-str]
+  (compile-query q-str #(like % CCOL)))
+
+(defn- like-word?
+  "検索クエリの単語wordをフレーズ検索でなくLIKEで探すならtrue。"
+  [^String word]
+  (boolean (or (s/blank? word) (re-find #"[%_]" word))))
+
+(defn- fts-like
+  "LIKE '%word%' と同じ文字列にマッチする、fts-textで変換した文字列に対するLIKEのパターンを返す。
+   ワイルドカード以外の文字をfts-textで変換し、_も空白を前置して1文字に対応させる。"
+  [^String word]
+  (->> (re-seq #"%|_|[^%_]+" (or word ""))
+       (map #(condp = % "%" "%" "_" " _" (fts-text %)))
+       (apply str)
+       (format "%%%s%%")))
+
+(defn- compile-params
+  "検索クエリq-strを解析し、各単語をleaf-fnで[条件式 & パラメータ]にしたものをまとめ、[WHERE句 & パラメータ]を返す。"
+  [q-str leaf-fn]
+  (fold-query q-str leaf-fn
+              (fn [op args]
+                (let [cname (s/upper-case (name op))]
+                  (into [(if (prefixes op)
+                           (format "(%s %s)" cname (ffirst args))
+                           (format "(%s)" (s/join (format " %s " cname) (map first args))))]
+                        (mapcat rest args))))))
 
-(defn- sql-comms [comms]
-  (str "SELECT * FROM pgms WHERE " (where-comms-clause comms) " ORDER BY open_time DESC"))
+(defn match-clause
+  "検索クエリq-strを全文検索テーブルを用いるWHERE句に変換し、[WHERE句 & パラメータ]を返す。
+   各単語はtargetのいずれかのカラムに部分文字列として含まれる番組にマッチする。
+   LIKEのワイルドカード(%や_)を含む単語は全文検索テーブルの各カラムに対するLIKEとする。
+   単語は全てパラメータとして渡すので、引用符などを含んでいてもよい。"
+  [q-str target]
+  (let [cols (filter (set target) FTS-COLS)
+        any-col (fn [fmt sep wrap p]
+                  (into [(->> cols (map #(format fmt (name %))) (s/join sep) (format wrap))]
+                        (repeat (count cols) p)))]
+    (compile-params q-str
+                    (fn [^String word]
+                      (cond
+                        (not= (count cols) (count target)) [(format "(%s LIKE ?)" CCOL) (str "%" word "%")]
+                        (like-word? word) (any-col "%s LIKE ?" " OR " "(id IN (SELECT id FROM pgms_fts WHERE %s))"
+                                                   (fts-like word))
+                        :else (any-col "SELECT id FROM pgms_fts WHERE %s MATCH ?" " UNION " "(id IN (%s))"
+                                       (str "\"" (fts-text word) "\"")))))))
+
+(defn- kwd-clause
+  "キーワード検索の[WHERE句 & パラメータ]を返す。
+   従来の連結カラムに対するLIKEと結果を揃えるため、対象カラムのいずれかがNULLの番組は除く。
+   クエリを解析できなければどの番組にもマッチしない。"
+  [query target]
+  (let [[clause & params] (or (match-clause query target) ["0"])]
+    (into [(format "(%s) AND %s" (s/join " AND " (map #(str (name %) " IS NOT NULL") target)) clause)]
+          params)))
+
+(defn- select-comms
+  "ユーザーチャネルidの検索クエリ。参加コミュニティはset-comms!で登録しておく。ORDER BYを含まないので条件を追加できる。"
+  [id]
+  ["SELECT * FROM pgms WHERE comm_id IN (SELECT comm_id FROM chcomms WHERE ch = ?)" id])
+
+(defn- select-kwd
+  "キーワードチャネルの検索クエリ[SQL & パラメータ]。ORDER BYを含まないので条件を追加できる。
+   全文検索テーブルにないカラムを対象とする場合のみ連結カラムを用いる。"
+  [query target]
+  {:pre [(not (s/blank? query)) (pos? (count target)) (every? keyword? target)]}
+  (let [[clause & params] (kwd-clause query target)]
+    (into [(if (every? (set FTS-COLS) target)
+             (format "SELECT * FROM pgms WHERE %s" clause)
+             (format "SELECT *, %s AS %s FROM pgms WHERE %s" (s/join " || " (map name target)) CCOL clause))]
+          params)))
 
 (defn- sql-kwd
   ([query target]
-     {:pre [(not (s/blank? query)) (pos? (count target)) (every? keyword? target)]}
-     (format "SELECT *, %s AS %s FROM pgms WHERE %s ORDER BY open_time DESC"
-             (s/join " || " (map name target)) CCOL (where-clause query)))
+     (update-in (select-kwd query target) [0] str " ORDER BY open_time DESC"))
   ([query target limit]
      {:pre [(not (s/blank? query)) (pos? (count target)) (every? keyword? target) (number? limit) (pos? limit)]}
-     (str (sql-kwd query target) " LIMIT " limit)))
+     (-> (sql-kwd query target)
+         (update-in [0] str " LIMIT ?")
+         (conj limit))))
+
+;; Matcher ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;; 登録されたチャネルのクエリを、DBに問い合わせずに番組情報ごとに評価する。
+;; 結果はselect-kwd, select-commsによるSQLと一致させる。
+
+(defn- like-pattern
+  "LIKE '%word%' と同じ文字列を探す正規表現を返す。SQLiteと同じくASCIIの英字のみ大文字小文字を区別しない。
+   ワイルドカード以外の部分はnormで変換する。"
+  ^Pattern [^String word norm]
+  (->> (re-seq #"%|_|[^%_]+" (or word ""))
+       (map #(condp = % "%" ".*" "_" "." (Pattern/quote (norm %))))
+       (apply str)
+       (#(Pattern/compile % (bit-or Pattern/DOTALL Pattern/CASE_INSENSITIVE)))))
+
+(defn- kwd-pred
+  "キーワードチャネルのクエリを評価する関数(fn [pgm texts found])を返す。
+   textsはFTS-COLSの順に各カラムをsearch-textで正規化したもの、foundは各カラムで見つかった単語のBitSet。
+   フレーズ検索する単語はword-idxで番号を割り当てる。クエリを解析できなければnilを返す。"
+  [query target word-idx]
+  (let [tset (set target)
+        cols (filter tset FTS-COLS)
+        col-idxs (int-array (keep-indexed #(when (tset %2) %1) FTS-COLS))
+        ccol (fn [pgm] (apply str (map #(get pgm %) target)))
+        f (fold-query query
+                      (fn [^String word]
+                        (cond
+                          (not= (count cols) (count target))
+                          (let [p (like-pattern word identity)]
+                            (fn [pgm texts found] (.find (.matcher p ^String (ccol pgm)))))
+                          (like-word? word)
+                          (let [p (like-pattern word search-text)]
+                            (fn [pgm ^objects texts found]
+                              (loop [j 0]
+                                (cond
+                                  (= j (alength col-idxs)) false
+                                  (.find (.matcher p ^String (aget texts (aget col-idxs j)))) true
+                                  :else (recur (inc j))))))
+                          :else
+                          (let [i (int (word-idx (search-text word)))]
+                            (fn [pgm texts ^objects found]
+                              (loop [j 0]
+                                (cond
+                                  (= j (alength col-idxs)) false
+                                  (.get ^BitSet (aget found (aget col-idxs j)) i) true
+                                  :else (recur (inc j))))))))
+                      (fn [op fs]
+                        (condp = op
+                          :not (let [f (first fs)] (fn [pgm texts found] (not (f pgm texts found))))
+                          :and (fn [pgm texts found] (every? #(% pgm texts found) fs))
+                          :or  (fn [pgm texts found] (boolean (some #(% pgm texts found) fs))))))]
+    (when f
+      (fn [pgm texts found]
+        (and (every? #(some? (get pgm %)) target)
+             (f pgm texts found))))))
+
+(defn compile-matcher
+  "チャネルの検索条件chsをまとめて、番組情報ごとにマッチするチャネルを求めるマッチャーにする。
+   chsは{チャネルID {:query [クエリ] :target [ターゲット]}}または{チャネルID {:comms [コミュニティIDのset]}}。
+   全てのキーワードチャネルの単語は1つのAho-Corasickオートマトンにまとめ、番組の各カラムを1回ずつ走査するだけで済ませる。"
+  [chs]
+  (let [words (java.util.LinkedHashMap.)
+        word-idx (fn [w] (or (.get words w) (let [i (.size words)] (.put words w i) i)))
+        preds (doall
+               (for [[id {:keys [query target comms]}] chs
+                     :let [pred (if comms
+                                  (let [comms (set comms)] (fn [pgm _ _] (contains? comms (:comm_id pgm))))
+                                  (kwd-pred query target word-idx))]
+                     :when pred]
+                 [id pred]))]
+    ;; fts-textは正規化後の文字ごとの置き換えなので、全文検索テーブルのフレーズ検索は正規化した文字列の部分文字列の検索と同じになる
+    {:ac (AhoCorasick. (into-array String (keys words)))
+     :preds preds}))
+
+(defn match-pgm
+  "番組情報pgmにマッチするチャネルIDのsetを返す。"
+  [matcher pgm]
+  (let [^AhoCorasick ac (:ac matcher)
+        texts (into-array String (map #(search-text (get pgm %)) FTS-COLS))
+        found (if (pos? (.size ac))
+                (into-array BitSet (map #(.match ac ^String %) texts))
+                (object-array (repeat (count FTS-COLS) (BitSet.))))]
+    (reduce (fn [ids [id pred]] (if (pred pgm texts found) (conj ids id) ids)) #{} (:preds matcher))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
+(def ^{:private true} PGM-COLS [:id :title :open_time :start_time :description :category :link :thumbnail
+                                :owner_name :member_only :type :comm_name :comm_id :fetched_at :updated_at])
+(def ^{:private true} IN-SIZE 64) ; IN句のプレースホルダ数。足りない分はNULLで埋める
+
+(defn- placeholders [n] (s/join "," (repeat n "?")))
+
+(defn- stmt
+  "dbの接続に対する準備済みのSQL文を返す。:stmtsにキャッシュがあれば同じ接続では使い回す。"
+  ^PreparedStatement [db ^String sql]
+  (let [^Connection conn (:connection db)]
+    (if-let [cache (:stmts db)]
+      (or (get @cache sql)
+          (let [ps (.prepareStatement conn sql)]
+            (swap! cache assoc sql ps)
+            ps))
+      (.prepareStatement conn sql))))
+
+(defn- set-params! [^PreparedStatement ps params]
+  (loop [i 1 params params]
+    (when-let [[p & ps-rest] (seq params)]
+      (.setObject ps i p)
+      (recur (inc i) ps-rest)))
+  ps)
+
+(defn- batch!
+  "sqlをparamssの各パラメータ列で一括実行し、更新行数の合計を返す。"
+  [db sql paramss]
+  (if (seq paramss)
+    (let [ps (stmt db sql)]
+      (doseq [params paramss]
+        (set-params! ps params)
+        (.addBatch ps))
+      (reduce + (map #(max 0 %) (.executeBatch ps))))
+    0))
+
+(defn- query-in
+  "「col IN (...)」を条件とするクエリfmtをvalsについてIN-SIZE個ずつ実行し、結果の行を返す。"
+  [db fmt vals]
+  (let [sql (format fmt (placeholders IN-SIZE))]
+    (->> (partition-all IN-SIZE vals)
+         (mapcat (fn [chunk]
+                   (let [ps (set-params! (stmt db sql) (take IN-SIZE (concat chunk (repeat nil))))]
+                     (with-open [rs (.executeQuery ps)]
+                       (doall (jdbc/result-set-seq rs))))))
+         doall)))
+
+(defn- delete-fts!
+  "番組IDがidsの番組を全文検索テーブルから削除する。"
+  [db ids]
+  (batch! db "DELETE FROM pgms_fts WHERE docid = ?" (map #(vector (docid %)) ids)))
+
+(defn- set-comms!
+  "ユーザーチャネルidの参加コミュニティIDをテンポラリテーブルに登録する。"
+  [db id comms]
+  (jdbc/with-db-transaction [db db]
+    (batch! db "DELETE FROM chcomms WHERE ch = ?" [[id]])
+    (batch! db "INSERT OR IGNORE INTO chcomms (ch, comm_id) VALUES (?, ?)" (map #(vector id %) comms))))
+
+(defn- rem-query!
+  "チャネルidの検索クエリを取り除き、準備済みのSQL文を閉じる。"
+  [db id]
+  (when-let [[^PreparedStatement ps] (get @(:qs db) id)]
+    (.close ps))
+  (swap! (:qs db) dissoc id))
+
+(defn- set-query!
+  "チャネルidの検索クエリ[SQL & パラメータ]を準備済みのSQL文にして:qsに登録する。以前のクエリは取り除く。
+   評価のたびにSQLを解析し直さないよう、クエリが変わるまで同じ準備済みのSQL文を使う。"
+  [db id [sql & params]]
+  (rem-query! db id)
+  (swap! (:qs db) assoc id (into [(.prepareStatement ^Connection (:connection db) sql)] params)))
+
+(defn- merge-value
+  "既存の値ovを新しい値vで更新した値を返す。文字列は長い方を、数値(時刻など)は大きい方を残す。"
+  [v ov]
+  (cond
+    (= v ov) ov
+    (instance? String v) (if (> (count v) (count ov)) v ov)
+    (and (number? v) (number? ov)) (max v ov)
+    :else v))
+
+(defn- mark-dirty!
+  "前回のチャネル検索以降に追加・更新された番組IDchangedと削除された番組IDremovedを:dirtyに記録する。"
+  [db changed removed]
+  (when-let [dirty (:dirty db)]
+    (swap! dirty (fn [d]
+                   (let [c (apply disj (:changed d) removed)
+                         r (into (:removed d) removed)]
+                     {:changed (into c changed)
+                      :removed (apply disj r changed)})))))
+
+(def ^{:private true} DELTA-LIMIT 512) ; 前回の検索以降に変化した番組がこれを超えたら差分でなく全件を評価する
+
+(defn- delta
+  "チャネルの前回の検索結果prev(番組IDのset)と今回評価した行rowsから、差分と新しい検索結果を返す。
+   fullならrowsは全件を評価した結果、そうでなければ変化した番組changedだけを評価した結果である。
+   removedは前回以降に削除された番組ID。
+   [{:added [追加された行] :removed [取り除く番組IDのset] :updated [更新された行]} 新しい検索結果]"
+  [prev rows changed removed full]
+  (let [mids (set (map :id rows))
+        rmids (if full
+                (set/difference prev mids)
+                (set/union (set/intersection prev removed)
+                           (set/difference (set/intersection prev changed) mids)))]
+    [{:added (remove #(contains? prev (:id %)) rows)
+      :removed rmids
+      :updated (filter #(and (contains? prev (:id %)) (contains? changed (:id %))) rows)}
+     (set/union (set/difference prev rmids) mids)]))
+
+;; Retention ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;; 番組を最終更新時刻の時間区分(バケット)ごとに保持し、古いバケットから丸ごと削除する。
+;; 削除対象を決めるのにDBを並べ替えたりニコ生の総番組数を参照したりする必要がない。
+
+(def ^{:private true} SLICE-MSEC 300000) ; バケットの時間幅ミリ秒
+
+(defn- empty-buckets [] {:slices (sorted-map) :slice-of {}})
+
+(defn- untrack
+  [{:keys [slices slice-of] :as b} id]
+  (if-let [s (get slice-of id)]
+    (let [ids (disj (get slices s) id)]
+      {:slices (if (empty? ids) (dissoc slices s) (assoc slices s ids))
+       :slice-of (dissoc slice-of id)})
+    b))
+
+(defn- track!
+  "番組IDと最終更新時刻の組id-timesを、最終更新時刻のバケットに記録する。"
+  [db id-times]
+  (when-let [buckets (:buckets db)]
+    (swap! buckets (fn [b]
+                     (reduce (fn [b [id t]]
+                               (let [s (quot (or t 0) SLICE-MSEC)]
+                                 (if (= s (get-in b [:slice-of id]))
+                                   b
+                                   (-> (untrack b id)
+                                       (update-in [:slices s] (fnil conj #{}) id)
+                                       (assoc-in [:slice-of id] s)))))
+                             b id-times)))))
+
+(defn- untrack!
+  "削除した番組IDidsをバケットから取り除く。"
+  [db ids]
+  (when-let [buckets (:buckets db)]
+    (swap! buckets #(reduce untrack % ids))))
+
+(defn- delete-pgms!
+  "番組IDがidsの番組を削除する。"
+  [db ids]
+  (when (seq ids)
+    (jdbc/with-db-transaction [db db]
+      (delete-fts! db ids)
+      (batch! db "DELETE FROM pgms WHERE id = ?" (map vector ids)))
+    (mark-dirty! db [] ids)
+    (untrack! db ids)))
+
+(defn- db-bytes
+  "DBが使用しているページのバイト数を返す。"
+  [db]
+  (let [pragma (fn [p] (jdbc/query db [(str "PRAGMA " p)] :row-fn (keyword p) :result-set-fn first))]
+    (* (pragma "page_size") (- (pragma "page_count") (pragma "freelist_count")))))
+
+(defn- evict!
+  "古いバケットから順に、次の理由に当たるものを丸ごと削除し、理由ごとの削除数を返す。
+   :expired 最終更新からretentionミリ秒を過ぎた
+   :rows    番組数がmax-rowsを超えている
+   :bytes   DBの使用量がmax-bytesバイトを超えている
+   ただし最終更新からmin-keepミリ秒以内のバケットは上限を超えていても削除しない。"
+  [db now {:keys [retention min-keep max-rows max-bytes]}]
+  (loop [evicted {}]
+    (let [{:keys [slices slice-of]} @(:buckets db)
+          [s ids] (first slices)
+          end (when s (* (inc s) SLICE-MSEC))
+          reason (when s
+                   (cond
+                     (<= end (- now retention)) :expired
+                     (< (- now min-keep) end) nil
+                     (< max-rows (count slice-of)) :rows
+                     (< max-bytes (db-bytes db)) :bytes))]
+      (if reason
+        (do
+          (delete-pgms! db ids)
+          (recur (update-in evicted [reason] (fnil + 0) (count ids))))
+        evicted))))
+
 (defn- add!*
   "番組情報をDBに登録する。[追加レコード数 既存レコード削除数]を返す。
    
    同じ番組情報が既に登録されている場合は更新する
     -> 時刻系(:open_time :start_time :updated_at)とその他(異なる場合)
-   同じコミュニティIDの古い番組が既に登録されている場合は削除した上で新しい番組を登録する"
+   同じコミュニティIDの古い番組が既に登録されている場合は削除した上で新しい番組を登録する
+   書き込みは全て準備済みのSQL文の一括実行で行う。"
   [db pgms]
-  (letfn [(query-pgm-id [n]
-            (str "SELECT * FROM pgms WHERE id IN (" (s/join "," (repeat n "?")) ")"))
-          (query-comm-id [n]
-            (str "SELECT id, comm_id, start_time FROM pgms WHERE comm_id IN (" (s/join "," (repeat n "?")) ")"))
-          (diff-row [new old]
-            (let [[only-new only-old both] (cd/diff new old)]
-              (reduce (fn [m [k v]]
-                        (let [ov (get old k)]
-                          (assoc m k (condp instance? v
-                                       String (if (> (count v) (count ov)) v ov)
-                                       Long (max v ov)
-                                       v))))
-                      {} only-new)))]
+  (let [upd-cols (rest PGM-COLS)
+        sql-insert (format "INSERT INTO pgms (%s) VALUES (%s)"
+                           (s/join "," (map name PGM-COLS)) (placeholders (count PGM-COLS)))
+        sql-update (format "UPDATE pgms SET %s WHERE id = ?" (s/join "," (map #(str (name %) " = ?") upd-cols)))
+        sql-insert-fts (format "INSERT INTO pgms_fts (docid,id,%s) VALUES (%s)"
+                               (s/join "," (map name FTS-COLS)) (placeholders (+ 2 (count FTS-COLS))))
+        sql-update-fts (format "UPDATE pgms_fts SET %s WHERE docid = ?"
+                               (s/join "," (map #(str (name %) " = ?") FTS-COLS)))]
     ;; epgms 同一IDを持つキャッシュ済みの情報 -> pgms0と比較して必要に応じカラム更新
     ;; pgms0 追加しようとしている番組情報 -> epgmsと比較して必要に応じカラム更新
     ;; pgms1 テンポラリ
@@ -134,15 +526,18 @@
     ;; pgms3 テンポラリ
     ;; opgms 同一コミュニティの番組情報 -> 削除
     ;; pgms4 pgmsのうち同一コミュニティのキャッシュ済み情報より新しいと確認できたもの -> 追加してよい
-    (let [epgms (jdbc/query db (vec (concat [(query-pgm-id (count pgms))] (map :id pgms))))
+    (let [epgms (query-in db "SELECT * FROM pgms WHERE id IN (%s)" (map :id pgms))
           epids (->> epgms (map :id) set)
           [pgms0 pgms1] (let [m (group-by #(contains? epids (:id %)) pgms)]
                           [(get m true) (get m false)])
           [pgms2 pgms3] (let [m (group-by #(s/blank? (:comm_id %)) pgms1)]
                           [(get m true) (get m false)])
-          cmap (reduce #(assoc %1 (:comm_id %2) %2) {} pgms3)
+          ;; まとめて登録する場合は同じコミュニティの番組が複数含まれうるので、開始時刻の新しいものを残す
+          cmap (reduce #(let [o (get %1 (:comm_id %2))]
+                          (if (and o (>= (:start_time o) (:start_time %2))) %1 (assoc %1 (:comm_id %2) %2)))
+                       {} pgms3)
           comm-ids (keys cmap)
-          [opgms pgms4] (loop [cpgms (jdbc/query db (vec (concat [(query-comm-id (count comm-ids))] comm-ids)))
+          [opgms pgms4] (loop [cpgms (query-in db "SELECT id, comm_id, start_time FROM pgms WHERE comm_id IN (%s)" comm-ids)
                                opgms []
                                cmap cmap]
                           (if-let [cpgm (first cpgms)]
@@ -151,21 +546,30 @@
                               (if (> (:start_time npgm) (:start_time cpgm))
                                 (recur (rest cpgms) (conj opgms cpgm) cmap)
                                 (recur (rest cpgms) opgms (dissoc cmap comm_id))))
-                            [opgms (vals cmap)]))]
+                            [opgms (vals cmap)]))
+          ipgms (concat pgms2 pgms4)
+          ;; 既存の番組情報とカラムごとに比較し、変化したものだけを更新対象にする
+          upgms (let [pmap (reduce #(assoc %1 (:id %2) %2) {} pgms0)]
+                  (for [epgm epgms
+                        :let [pgm (get pmap (:id epgm))
+                              mpgm (reduce #(assoc %1 %2 (merge-value (get pgm %2) (get epgm %2))) epgm upd-cols)]
+                        :when (not= mpgm epgm)]
+                    [mpgm epgm]))]
       ;; (log/tracef "PGMS (%d) -> PGMS2 (%d), PGMS4 (%d), EPGMS (%d), OPGMS (%d)"
       ;;             (count pgms) (count pgms2) (count pgms4) (count epgms) (count opgms))
       (jdbc/with-db-transaction [db db]
-        (jdbc/delete! db :pgms (-> [(str "id IN (" (s/join "," (-> opgms count (repeat "?"))) ")")
-                                    (map :id opgms)] flatten vec))
-        (doseq [pgm (concat pgms2 pgms4)] (jdbc/insert! db :pgms pgm))
-        (when (pos? (count epgms)) ;; 要比較更新
-          (let [pmap (reduce #(assoc %1 (:id %2) %2) {} pgms0)]
-            (doseq [epgm epgms]
-              (let [pgm (get pmap (:id epgm))
-                    upd-kvs (diff-row pgm epgm)]
-                (when-not (empty? upd-kvs)
-                  (jdbc/update! db :pgms upd-kvs ["id=?" (:id epgm)])))))))
-      [(+ (count pgms2) (count pgms4)) (count opgms)])))
+        (batch! db "DELETE FROM pgms WHERE id = ?" (map #(vector (:id %)) opgms))
+        (delete-fts! db (map :id opgms))
+        (batch! db sql-insert (map (fn [pgm] (map #(get pgm %) PGM-COLS)) ipgms))
+        (batch! db sql-insert-fts (map #(let [r (fts-row %)] (map r (list* :docid :id FTS-COLS))) ipgms))
+        (batch! db sql-update (map (fn [[mpgm _]] (concat (map mpgm upd-cols) [(:id mpgm)])) upgms))
+        (batch! db sql-update-fts (for [[mpgm epgm] upgms
+                                        :when (not= (map mpgm FTS-COLS) (map epgm FTS-COLS))]
+                                    (concat (map #(fts-text (get mpgm %)) FTS-COLS) [(docid (:id mpgm))]))))
+      (mark-dirty! db (concat (map :id ipgms) (map (comp :id first) upgms)) (map :id opgms))
+      (untrack! db (map :id opgms))
+      (track! db (map (juxt :id :updated_at) (concat ipgms (map first upgms))))
+      [(count ipgms) (count opgms)])))
 
 (defn- add! [db pgms]
   (let [upgms (loop [pgms pgms upgms [] ids #{}]
@@ -181,33 +585,93 @@
         [0 0]))))
 
 (defn- vacuum!
-  "Sqliteのin-memory DBに対するVACUUM代替処理。
-  in-memory DBはVACUUMクエリが無効なようなので(少なくともMac版はできてなさげ)、
-  新しいin-memory DBを作成し今のDBの内容をコピーする、というかなり雑な処理である。
-  なお本プログラムのDBは1テーブルしかなく行数も7000を超えない程度しかない小規模なものであり、
-  実測で繁忙期でも高々1.3秒程度しかかからないことがわかったため、RSS登録サイクルの終了時に毎回実行する。"
-  [db]
-  (let [ndb (assoc db :connection (DriverManager/getConnection CONN-URI))]
-    (create-db! ndb)
-    (jdbc/with-db-transaction [ndb ndb]
-      (jdbc/query db "SELECT * FROM pgms" :row-fn #(jdbc/insert! ndb :pgms %)))
-    ndb))
+  "削除で生じた空きページをnpagesページまで解放し、残りの空きページ数を返す。
+  以前は新しいin-memory DBを作って全行をコピーしていたが、その間DBの処理が止まるため、
+  auto_vacuum = INCREMENTAL を用いて少しずつ解放する。全文検索テーブルのセグメントも合わせて少しずつマージする。"
+  [db npages]
+  (let [^Connection conn (:connection db)]
+    (jdbc/execute! db [(format "INSERT INTO pgms_fts(pgms_fts) VALUES('merge=%d,8')" npages)])
+    (with-open [stmt (.createStatement conn)]
+      ;; incremental_vacuumは1ページ解放するごとに1行返すので、最後まで読み進める
+      (when (.execute stmt (format "PRAGMA incremental_vacuum(%d)" npages))
+        (with-open [rs (.getResultSet stmt)]
+          (while (.next rs)))))
+    (reset! (:free db) (jdbc/query db ["PRAGMA freelist_count"] :row-fn :freelist_count :result-set-fn first))))
+
+(defn- write-snapshot!
+  "DBの内容をファイルfに書き出す。書き出し途中で終了しても前回のスナップショットが壊れないよう、一時ファイルに書いてから置き換える。"
+  [db ^File f]
+  (let [tmp (File. (.getParentFile f) (str (.getName f) ".tmp"))]
+    (.mkdirs (.getParentFile f))
+    (with-open [stmt (.createStatement ^Connection (:connection db))]
+      (.executeUpdate stmt (format "backup to \"%s\"" (.getAbsolutePath tmp))))
+    (.delete f)
+    (when-not (.renameTo tmp f)
+      (throw (java.io.IOException. (format "failed renaming %s to %s" tmp f))))))
+
+(defn- restore-snapshot
+  "write-snapshot!で書き出したファイルfから新しい接続にDBを復元し、dbの接続を差し替えたものを返す。
+   新しい接続はdbの:uriに接続するので、共有キャッシュのメモリDBならその内容が置き換わる。
+   horizonより前に更新された番組は終了しているとみなして取り除く。horizonは番組の更新時刻と同じnico.net/nowの時計による。
+   ファイルの更新時刻はシステムの時計によるので、書き出してからの経過時間はそれと比べ、max-ageミリ秒を超えていれば古すぎるとする。
+   ファイルがない、古すぎる、スキーマが異なるなどで復元できなければnilを返す。"
+  [db ^File f horizon max-age]
+  (when (and (.isFile f) (< (- (System/currentTimeMillis) (.lastModified f)) max-age))
+    (try
+      ;; 復元先を書き換える前にスキーマのバージョンを確かめる
+      (let [version (with-open [conn (DriverManager/getConnection (str "jdbc:sqlite:" (.getAbsolutePath f)))]
+                      (jdbc/query {:connection conn} ["PRAGMA user_version"] :row-fn :user_version :result-set-fn first))]
+        (if (not= SCHEMA-VERSION version)
+          (log/infof "ignored the snapshot of schema version %d: %s" version f)
+          (let [conn (DriverManager/getConnection (or (:uri db) (conn-uri)))]
+            (try
+              (with-open [stmt (.createStatement conn)]
+                (.executeUpdate stmt (format "restore from \"%s\"" (.getAbsolutePath f))))
+              (let [ndb (assoc db :connection conn :stmts (atom {}))
+                    ids (jdbc/query ndb ["SELECT id FROM pgms WHERE updated_at < ?" horizon] :row-fn :id)]
+                (jdbc/db-do-commands ndb false TEMP-DDL)
+                (jdbc/query ndb ["PRAGMA journal_mode = OFF"])
+                (delete-pgms! ndb ids)
+                (track! ndb (jdbc/query ndb ["SELECT id, updated_at FROM pgms"] :row-fn (juxt :id :updated_at)))
+                (reset! (:free ndb) (jdbc/query ndb ["PRAGMA freelist_count"] :row-fn :freelist_count :result-set-fn first))
+                (log/infof "restored %d programs from %s (%d expired)"
+                           (jdbc/query ndb ["SELECT COUNT(*) AS cnt FROM pgms"] :row-fn :cnt :result-set-fn first) f (count ids))
+                ndb)
+              (catch Exception e
+                (.close conn)
+                (throw e))))))
+      (catch Exception e
+        (log/warnf e "failed restoring the snapshot: %s" f)))))
 
 (defn boot
   "番組情報を保持するDBインスタンスを生成し、コントロールチャネルを返す。
+   snapshotが与えられると、起動時にそのファイルからDBを復元し、以後定期的にDBの内容を書き出す。
+   書き出しは前回から番組情報が変わっていて、コマンドが途切れた時に行う。
+   DBの処理はcore.asyncのディスパッチスレッドを塞がないよう専用のスレッドで行う。
+   続けて届いた:add-pgmsは1つのトランザクションにまとめて登録し、検索は登録待ちのコマンドがなくなってから行う。
+   :search-ondemandは読み出し用の接続で別スレッドで行うので、登録や他のコマンドを待たない。
+   その結果は最後に受け付けた:search-ondemandのものだけを送る。
    アウトプットチャネルoc-uiには次のステータスが出力される。
    :db-stat
-          {:status :db-stat :npgms [DBに格納されている総番組数] :last-updated [最終更新日時文字列] :total [ニコ生から得た総番組数]}
-   :searched :searchによる検索結果。
-          {:status :searched :results {key: [チャネルID], val: [検索された番組情報のリスト]}}
+          {:status :db-stat :npgms [DBに格納されている総番組数] :last-updated [最終更新日時文字列] :total [ニコ生から得た総番組数]
+           :queue [コントロールチャネルで処理を待っているコマンド数] :evicted [理由ごとの削除番組数]}
+   :searched :searchによる検索結果。前回の検索結果から変化のあったチャネルの差分のみを含む。
+          {:status :searched :results {key: [チャネルID],
+                                       val: {:added [追加された番組情報のリスト]
+                                             :removed [取り除く番組IDのset]
+                                             :updated [更新された番組情報のリスト]}}}
    :searched-ondemand :search-ondemandによる検索結果。
-          {:status :searched-ondemand :results [検索された番組情報のリスト]}
+          {:status :searched-ondemand :sn [通し番号] :cnt [該当する番組数] :results [検索された番組情報のリスト]}
+          検索は並行に行い終わる順が前後するため、次の:search-ondemandを受け付けた後に終わった検索の結果は送らない。
+   番組情報にイメージは含まれない。サムネイルは:thumbnailのURLからnico.image/image-asyncで非同期に取得する。
 
    コントロールチャネルは次のコマンドを受理する。
    :add-pgms 番組情報をまとめて登録する。
           {:cmd :add-pgms :pgms [番組情報のリスト] :force-search [番組情報検索するか]}
-   :set-total 総番組数を設定する。この情報を元にDB内の古い番組情報を削除する。
+   :set-total 総番組数を設定する。表示のみに用い、古い番組情報の削除には用いない。
           {:cmd :set-total :total [ニコ生から得た総番組数]}
+   :end-pgms 終了した番組を削除する。
+          {:cmd :end-pgms :ids [番組IDのリスト]}
    :search 番組情報を検索する。結果はアウトプットチャネルに返す。
           {:cmd :search :queries {:id [チャネルID] :where [検索クエリ]}}
    :search-ondemand 番組情報を検索する。結果はアウトプットチャネルに返す。
@@ -218,106 +682,294 @@
           {:cmd :set-query :id [チャネルID] :comms [参加コミュニティIDのset]}
    :rem-query search用クエリの削除。
           {:cmd :rem-query :id [チャネルID]}
+   :snapshot DBの内容をスナップショットに書き出す。終わったらdoneを閉じる。
+          {:cmd :snapshot :done [チャネル]}
 
    また、次のコマンドが内部的に使用される。
    :create-db
           {:cmd :create-db}"
-  [oc-ui]
-  (letfn [(gen-pgm [r]
-            (assoc r :thumbnail_image (img/image (:thumbnail r))))
-          (search-pgms [db q]
-            (do (jdbc/query db [q] :row-fn gen-pgm)))
-          (search-pgms-by-queries [db]
-            (->> @(:qs db)
-                 (reduce (fn [m [id q]] (assoc m id (search-pgms db q))) {})))
+  [oc-ui & [^File snapshot]]
+  (letfn [(search-pgms [db q]
+            (jdbc/query db q))
+          (search-pgms-by-queries [db fulls]
+            ;; 登録されたクエリを前回の検索以降に変化した番組についてのみ評価し、チャネルごとの差分を返す。
+            ;; クエリが変わったチャネル(fulls)や、変化した番組が多い場合は全件を評価する。
+            ;; 変化した番組は一度だけ読み出し、マッチャーで全チャネルについてまとめて評価する。
+            (let [{:keys [changed removed]} @(:dirty db)
+                  all (< DELTA-LIMIT (count changed))
+                  matched (when-not all
+                            (let [matcher @(:matcher db)]
+                              (->> (query-in db "SELECT * FROM pgms WHERE id IN (%s)" changed)
+                                   (map #(vector % (match-pgm matcher %)))
+                                   doall)))]
+              (reset! (:dirty db) {:changed #{} :removed #{}})
+              (reduce (fn [m [id q]]
+                        (let [full (or all (contains? fulls id))
+                              rows (if full
+                                     (jdbc/query db q)
+                                     (keep (fn [[row ids]] (when (contains? ids id) row)) matched))
+                              [d ids] (delta (get @(:results db) id #{}) rows changed removed full)]
+                          (swap! (:results db) assoc id ids)
+                          (if (some seq (vals d))
+                            (assoc m id d)
+                            m)))
+                      {} @(:qs db))))
           (count-pgms [db query target]
-            (let [q (format "SELECT COUNT(*) AS cnt, %s AS %s FROM pgms WHERE %s"
-                            (s/join " || " (map name target)) CCOL (where-clause query))]
-              (jdbc/query db [q] :result-set-fn first :row-fn :cnt)))
+            (let [[sql & params] (select-kwd query target)]
+              (jdbc/query db (into [(format "SELECT COUNT(*) AS cnt FROM (%s)" sql)] params)
+                          :result-set-fn first :row-fn :cnt)))
           (n-pgms [db]
             (jdbc/query db ["SELECT COUNT(*) AS cnt FROM pgms"] :result-set-fn first :row-fn :cnt))
-          (timel-before [min]
-            (- (System/currentTimeMillis) (* 60000 min)))
-          (clean! [db target-val]
-            (let [q ["id IN (SELECT id FROM pgms WHERE open_time < ? AND updated_at < ? ORDER BY updated_at LIMIT ?)"
-                     (timel-before 30) (timel-before 5) target-val]]
-              (apply + (jdbc/delete! db :pgms q))))]
-    (let [KEEP-RATIO 1.05 ; ニコ生から得られた全数に対してDBの保持数がこの比率を超えたら削除する
-          CLEAN-INTERVAL 30000 ; 古い番組情報を削除間隔ミリ秒
+          (clean! [db now retention]
+            ;; 削除した番組数を返す。理由ごとの削除数は:evictedに積算する
+            (let [evicted (evict! db now retention)
+                  n (apply + (vals evicted))]
+              (when (pos? n)
+                (log/infof "evicted %s" (pr-str evicted))
+                (swap! (:evicted db) #(merge-with + % evicted))
+                ;; 番組が終了したとみなされる間どの番組にも現れなかった文字列はプールからも取り除く
+                (st/sweep-pool! (- (System/currentTimeMillis) (:retention retention))))
+              n))
+          (snapshot! [db]
+            (when snapshot
+              (try
+                (let [a (System/currentTimeMillis)]
+                  (write-snapshot! db snapshot)
+                  (reset! (:snapshot-at db) a)
+                  (reset! (:modified db) false)
+                  (log/infof "wrote the snapshot (%d msec)" (- (System/currentTimeMillis) a)))
+                (catch Exception e
+                  (log/warnf e "failed writing the snapshot: %s" snapshot)))))]
+    (let [CLEAN-INTERVAL 30000 ; 古い番組情報を削除間隔ミリ秒
+          RETENTION {:retention config/PGM-RETENTION-MSEC ; 終了が伝えられなくても、最終更新からこの時間(ミリ秒)が過ぎた番組は削除する
+                     :min-keep (* 5 60000)   ; 最終更新からこの時間(ミリ秒)以内の番組は上限を超えていても削除しない
+                     :max-rows 15000         ; 保持する番組数の上限
+                     :max-bytes (* 64 1024 1024)} ; DBの使用量の上限バイト
           SEARCH-INTERVAL 5000 ; 通常検索の実行間隔ミリ秒
           SEARCH-LIMIT 50 ; オンデマンド検索の検索結果上限
+          VACUUM-PAGES 256 ; 1回のVACUUMで解放する最大ページ数
+          VACUUM-INTERVAL 1000 ; 空きページが残っている場合に、コマンドが来なければVACUUMを続ける間隔ミリ秒
+          SNAPSHOT-INTERVAL 600000 ; スナップショットを書き出す間隔ミリ秒
+          SNAPSHOT-IDLE 2000 ; 書き出す間隔が過ぎた後、コマンドが来ない状態がこの時間(ミリ秒)続いたらスナップショットを書き出す
+          QUEUE-SIZE 64 ; コントロールチャネルのバッファ
+          COALESCE-LIMIT 32 ; まとめて1トランザクションで登録する:add-pgmsの最大数
+          READERS 2 ; オンデマンド検索に用いる読み出し用の接続数
+          uri (conn-uri)
+          readers (ArrayBlockingQueue. READERS) ; 読み出し用の接続
           ^FastDateFormat fmt (FastDateFormat/getInstance "HH:mm:ss")
-          cc (ca/chan)]
-      (Class/forName "org.sqlite.JDBC")
-      (ca/go-loop [db {:connection (DriverManager/getConnection CONN-URI) ; メモリDB保持のため
-                       :qs (atom {})} ; UIで設定されたクエリー。key: id, value: query string
-                   total 0 ; ニコ生から得た総番組数。
-                   npgms 0 ; DBに格納されている総番組数。
-                   last-cleaned  0  ; 最終削除時刻。削除頻度を上げ過ぎないために用いる。
-                   last-searched 0] ; 最終検索時刻。オンデマンド検索は含まない。検索頻度を上げ過ぎないために用いる。
-        (if-let [c (ca/<! cc)]
-          (condp = (:cmd c)
-            :create-db (let [now (System/currentTimeMillis)]
-                         (create-db! db)
-                         (recur db 0 0 now now))
-            :set-query-kwd (let [{:keys [id query target]} c
-                                 q (sql-kwd query target)]
-                             (swap! (:qs db) assoc id q)
-                             (ca/>! oc-ui {:status :searched :results (search-pgms-by-queries db)})
-                             (recur db total npgms last-cleaned last-searched))
-            :set-query-user (let [{:keys [id comms]} c
-                                  q (sql-comms comms)]
-                              (swap! (:qs db) assoc id q)
-                              (ca/>! oc-ui {:status :searched :results (search-pgms-by-queries db)})
-                              (recur db total npgms last-cleaned last-searched))
-            :rem-query (let [id (:id c)]
-                         (swap! (:qs db) dissoc id)
+          depth (atom 0) ; ccで処理を待っているコマンド数。ccに積まれる際に増やし、take-cmdで取り出す際に減らす
+          cc (ca/chan QUEUE-SIZE (map (fn [c] (swap! depth inc) c)))
+          held (volatile! nil) ; :add-pgmsをまとめる際に取り出してしまった他のコマンド
+          current (volatile! nil) ; 処理中のコマンドと開始時刻
+          search-pending (volatile! false) ; 登録が続いているため後回しにした検索があるか
+          ondemand-sn (AtomicLong.) ; 受け付けた:search-ondemandの通し番号
+          stats (atom {})] ; コマンドごとの処理件数と処理時間。key: コマンド, value: {:n 件数 :msec 合計 :max 最大}
+      (letfn [(queue-depth []
+                @depth)
+              (took [c]
+                (when c (swap! depth dec))
+                c)
+              (search-if-pending! [db]
+                ;; :add-pgms以外のコマンドで登録が途切れた場合も、待っているコマンドがなくなった時点で後回しにした検索を行う
+                (when (and @search-pending (nil? @held) (zero? (queue-depth)))
+                  (vreset! search-pending false)
+                  (ca/>!! oc-ui {:status :searched :results (search-pgms-by-queries db #{})})))
+              (coalesce [c]
+                ;; 続けて届いている:add-pgmsを1つにまとめる。同じ番組は後に届いたものを優先するため新しい順に並べる
+                (loop [cs [c]]
+                  (let [n (when (< (count cs) COALESCE-LIMIT) (took (ca/poll! cc)))]
+                    (if (= :add-pgms (:cmd n))
+                      (recur (conj cs n))
+                      (do
+                        (when n (vreset! held n))
+                        (when (< 1 (count cs)) (log/debugf "coalesced %d add-pgms" (count cs)))
+                        {:cmd :add-pgms
+                         :pgms (mapcat :pgms (rseq cs))
+                         :force-search (boolean (some :force-search cs))
+                         ;; RSSサイクルの最後を示す空のpgmsが含まれていたか
+                         :cycle-end (boolean (some #(-> % :pgms count zero?) cs))})))))
+              (idle [db]
+                ;; コマンドが来なければ行う処理と、それまで待つチャネルを返す。空きページの解放を先に済ませる
+                (cond
+                  (pos? @(:free db)) [{:cmd :vacuum} (net/timeout VACUUM-INTERVAL)]
+                  (and snapshot @(:modified db)) [{:cmd :snapshot}
+                                                  (ca/timeout (max SNAPSHOT-IDLE
+                                                                   (- (+ @(:snapshot-at db) SNAPSHOT-INTERVAL)
+                                                                      (System/currentTimeMillis))))]))
+              (take-cmd [db]
+                ;; 直前のコマンドの処理時間を記録し、次のコマンドを取り出す
+                (when-let [[cmd a] @current]
+                  (let [msec (- (System/currentTimeMillis) a)]
+                    (swap! stats update-in [cmd] (fn [{:keys [n total max] :or {n 0 total 0 max 0}}]
+                                                   {:n (inc n) :total (+ total msec) :max (clojure.core/max max msec)}))
+                    (log/tracef "%s (%d msec, %d queued)" cmd msec (queue-depth))))
+                (search-if-pending! db)
+                (let [c (or (let [c @held] (vreset! held nil) c)
+                            (if-let [[idle-cmd idle-ch] (idle db)]
+                              (let [[c ch] (ca/alts!! [cc idle-ch])]
+                                (if (= ch cc) (took c) idle-cmd))
+                              (took (ca/<!! cc))))
+                      c (if (= :add-pgms (:cmd c)) (coalesce c) c)]
+                  (vreset! current (when c [(:cmd c) (System/currentTimeMillis)]))
+                  c))
+              (open-readers! []
+                ;; 書き込み中のトランザクションを待たずに読めるようにする。途中の状態が見えることはあるが検索には支障ない
+                (dotimes [_ READERS]
+                  (let [rdb {:connection (DriverManager/getConnection uri)}]
+                    (jdbc/db-do-commands rdb false "PRAGMA read_uncommitted = true")
+                    (.put readers rdb))))
+              (close-readers! []
+                (let [rdbs (ArrayList.)]
+                  (.drainTo readers rdbs)
+                  (doseq [rdb rdbs] (.close ^Connection (:connection rdb)))))
+              (on-reader [f]
+                ;; 読み出し用の接続が空くのを待って、別スレッドでf(接続)を呼ぶ
+                (ca/thread
+                 (let [rdb (.take readers)]
+                   (try
+                     (f rdb)
+                     (finally
+                       (.put readers rdb))))))
+              (log-stats []
+                (log/infof "db commands: %s"
+                           (s/join ", " (for [[cmd {:keys [n total max]}] (sort-by key @stats)]
+                                          (format "%s %d (avg %d, max %d msec)" (name cmd) n (quot total n) max))))
+                (reset! stats {}))]
+        (Class/forName "org.sqlite.JDBC")
+        (ca/thread
+         (loop [db {:connection (DriverManager/getConnection uri) ; メモリDB保持のため
+                    :uri uri
+                    :qs (atom {}) ; UIで設定されたクエリー。key: id, value: [準備済みのSQL文 & パラメータ]
+                    :chs (atom {}) ; UIで設定された検索条件。key: id, value: compile-matcherを参照
+                    :matcher (atom (compile-matcher {})) ; :chsから作ったマッチャー
+                    :results (atom {}) ; UIに送った検索結果。key: id, value: 番組IDのset
+                    :dirty (atom {:changed #{} :removed #{}}) ; 前回の検索以降に変化した番組ID
+                    :stmts (atom {}) ; 準備済みのSQL文。key: SQL, value: PreparedStatement
+                    :free (atom 0) ; 未解放の空きページ数
+                    :snapshot-at (atom 0) ; 最後にスナップショットを書き出した時刻
+                    :modified (atom false) ; 最後にスナップショットを書き出した後に番組情報が変わったか
+                    :buckets (atom (empty-buckets)) ; 最終更新時刻のバケットごとの番組ID。track!を参照
+                    :evicted (atom {})} ; 理由ごとの削除数。evict!の理由、同じコミュニティの新しい番組による:replaced、終了を伝えられた:ended
+                total 0 ; ニコ生から得た総番組数。
+                npgms 0 ; DBに格納されている総番組数。
+                last-cleaned  0  ; 最終削除時刻。削除頻度を上げ過ぎないために用いる。
+                last-searched 0] ; 最終検索時刻。オンデマンド検索は含まない。検索頻度を上げ過ぎないために用いる。
+           (if-let [c (take-cmd db)]
+             (condp = (:cmd c)
+               :create-db (let [now (net/now)
+                                ndb (when snapshot (restore-snapshot db snapshot (- now (:retention RETENTION)) (:retention RETENTION)))]
+                            (if ndb
+                              (let [npgms (n-pgms ndb)]
+                                (.close ^Connection (:connection db))
+                                (reset! (:snapshot-at ndb) (System/currentTimeMillis))
+                                (ca/>!! oc-ui {:status :db-stat :npgms npgms :last-updated (.format fmt (net/now)) :total 0})
+                                (open-readers!)
+                                (recur ndb 0 npgms now now))
+                              (do
+                                (create-db! db)
+                                (open-readers!)
+                                (recur db 0 0 now now))))
+               :set-query-kwd (let [{:keys [id query target]} c]
+                                (set-query! db id (select-kwd query target))
+                                (reset! (:matcher db) (compile-matcher (swap! (:chs db) assoc id {:query query :target target})))
+                                (ca/>!! oc-ui {:status :searched :results (search-pgms-by-queries db #{id})})
+                                (recur db total npgms last-cleaned last-searched))
+               :set-query-user (let [{:keys [id comms]} c]
+                                 (set-comms! db id comms)
+                                 (set-query! db id (select-comms id))
+                                 (reset! (:matcher db) (compile-matcher (swap! (:chs db) assoc id {:comms comms})))
+                                 (ca/>!! oc-ui {:status :searched :results (search-pgms-by-queries db #{id})})
+                                 (recur db total npgms last-cleaned last-searched))
+               :rem-query (let [id (:id c)]
+                            (rem-query! db id)
+                            (set-comms! db id nil)
+                            (swap! (:results db) dissoc id)
+                            (reset! (:matcher db) (compile-matcher (swap! (:chs db) dissoc id)))
+                            (recur db total npgms last-cleaned last-searched))
+               :add-pgms (let [{:keys [pgms force-search cycle-end]} c
+                               [ins rm] (if (and pgms (-> pgms count pos?)) (add! db pgms) [0 0])
+                               _ (when (seq pgms) (reset! (:modified db) true))
+                               ;; いずれかのチャネルにマッチする番組のサムネイルは、検索結果をUIに送る前から取得しておく
+                               _ (when (pos? ins)
+                                   (let [matcher @(:matcher db)]
+                                     (img/prefetch (keep #(when (seq (match-pgm matcher %)) (:thumbnail %)) pgms))))
+                               _ (when (pos? rm) (swap! (:evicted db) update-in [:replaced] (fnil + 0) rm))
+                               now (net/now)
+                               ;; ニコ生の総番組数によらず、保持期間と上限に従って削除する
+                               [new-last-cleaned rm2] (if (< CLEAN-INTERVAL (- now last-cleaned))
+                                                        [now (clean! db now RETENTION)]
+                                                        [last-cleaned 0])
+                               npgms (n-pgms db)
+                               _ (when (and cycle-end (pos? npgms))
+                                   ;; RSSサイクルの最後は空のpgmsがくるのでVACUUMする。残りは空いた時間に続ける
+                                   (let [a (System/currentTimeMillis)
+                                         free (vacuum! db VACUUM-PAGES)]
+                                     (log/infof "vacuum (%d msec, %d pages left)" (- (System/currentTimeMillis) a) free))
+                                   (log-stats)
+                                   (log/infof "evicted programs: %s" (pr-str @(:evicted db))))
+                               ;; 次のコマンドが届いていれば、それを処理し終えるまで検索を後回しにする
+                               settled (and (nil? @held) (zero? (queue-depth)))
+                               want-search (or force-search @search-pending
+                                               (and (< SEARCH-INTERVAL (- now last-searched)) (some pos? [ins rm]))
+                                               (pos? rm2))
+                               new-last-searched (if (and want-search settled) now last-searched)]
+                           (vreset! search-pending (and want-search (not settled)))
+                           (ca/>!! oc-ui {:status :db-stat :npgms npgms :last-updated (.format fmt (net/now)) :total total
+                                          :queue (queue-depth) :evicted @(:evicted db)})
+
+                           (when (and want-search settled)
+                             (ca/>!! oc-ui {:status :searched :results (search-pgms-by-queries db #{})}))
+
+                           (recur db total npgms new-last-cleaned new-last-searched))
+               :vacuum (let [a (System/currentTimeMillis)
+                             free (vacuum! db VACUUM-PAGES)]
+                         (log/debugf "vacuum (%d msec, %d pages left)" (- (System/currentTimeMillis) a) free)
                          (recur db total npgms last-cleaned last-searched))
-            :add-pgms (let [{:keys [pgms force-search]} c
-                            [ins rm] (if (and pgms (-> pgms count pos?)) (add! db pgms) [0 0])
-                            now (System/currentTimeMillis)
-                            threshold (int (* KEEP-RATIO total))
-                            [new-last-cleaned rm2] (if (and (> npgms threshold 0) (< CLEAN-INTERVAL (- now last-cleaned)))
-                                                     [now (clean! db (- npgms threshold))]
-                                                     [last-cleaned 0])
-                            npgms (n-pgms db)
-                            ndb (if (and (-> pgms count zero?) (pos? npgms))
-                                  (let [a (System/currentTimeMillis)
-                                        ndb (vacuum! db)]
-                                    ;; RSSサイクルの最後は空のpgmsがくるのでVACUUMする
-                                    (log/infof "vacuum (%d msec)" (- (System/currentTimeMillis) a))
-                                    (.close (:connection db)) ; 古い方は削除
-                                    ndb)
-                                  db)
-                            new-last-searched (if (or (and (< SEARCH-INTERVAL (- now last-searched)) (some pos? [ins rm]))
-                                                      (not= last-cleaned new-last-cleaned)) 
-                                                now last-searched)]
-                        (ca/>! oc-ui {:status :db-stat :npgms npgms :last-updated (.format fmt (System/currentTimeMillis)) :total total})
-
-                        (when (or force-search (not= last-searched new-last-searched))
-                          (ca/>! oc-ui {:status :searched :results (search-pgms-by-queries ndb)}))
-
-                        (recur ndb total npgms new-last-cleaned new-last-searched))
-            :set-total (let [new-total (:total c)]
-                         (when (pos? new-total) (log/infof "SET-TOTAL: %d -> %d" total new-total))
-                         (recur db (if (pos? new-total) new-total total) npgms last-cleaned last-searched))
-            :search-ondemand (let [{:keys [query target]} c
-                                   cnt (count-pgms db query target)
-                                   q (if (< SEARCH-LIMIT cnt)
-                                       (sql-kwd query target SEARCH-LIMIT)
-                                       (sql-kwd query target))]
-                               (ca/>! oc-ui {:status :searched-ondemand :cnt cnt :results (search-pgms db q)})
-                               ;; ここではlast-searched更新しない
-                               (recur db total npgms last-cleaned last-searched))
-            (do
-              (log/warnf "caught an unknown command[%s]" (pr-str c))
-              (recur db total npgms last-cleaned last-searched)))
-          (do
-            (log/info "closed database control channel")
-            (try
-              (.close (:connection db))
-              (catch Exception e
-                (log/errorf e "failed closing connection"))))))
+               :snapshot (do
+                           (snapshot! db)
+                           (some-> (:done c) ca/close!)
+                           (recur db total npgms last-cleaned last-searched))
+               :end-pgms (let [ids (map :id (query-in db "SELECT id FROM pgms WHERE id IN (%s)" (:ids c)))]
+                           (when (seq ids)
+                             (delete-pgms! db ids)
+                             (reset! (:modified db) true)
+                             (swap! (:evicted db) update-in [:ended] (fnil + 0) (count ids))
+                             ;; 検索結果からも取り除く。検索は待っているコマンドがなくなってから行う
+                             (vreset! search-pending true))
+                           (recur db total (n-pgms db) last-cleaned last-searched))
+               :set-total (let [new-total (:total c)]
+                            (when (pos? new-total) (log/infof "SET-TOTAL: %d -> %d" total new-total))
+                            (recur db (if (pos? new-total) new-total total) npgms last-cleaned last-searched))
+               :search-ondemand (let [{:keys [query target]} c
+                                      sn (.incrementAndGet ondemand-sn)]
+                                  (on-reader
+                                   (fn [rdb]
+                                     (let [r (try
+                                               (let [cnt (count-pgms rdb query target)
+                                                     q (if (< SEARCH-LIMIT cnt)
+                                                         (sql-kwd query target SEARCH-LIMIT)
+                                                         (sql-kwd query target))]
+                                                 {:status :searched-ondemand :sn sn :cnt cnt :results (search-pgms rdb q)})
+                                               (catch Exception e
+                                                 (log/warnf e "failed searching [%s]" query)
+                                                 {:status :searched-ondemand :sn sn :cnt 0 :results []}))]
+                                       ;; 検索は並行に行われ終わる順は前後するので、最後に受け付けた検索の結果だけを送る
+                                       (locking ondemand-sn
+                                         (if (= sn (.get ondemand-sn))
+                                           (ca/>!! oc-ui r)
+                                           (log/debugf "dropped a stale on-demand search result (%d < %d)" sn (.get ondemand-sn)))))))
+                                  ;; ここではlast-searched更新しない
+                                  (recur db total npgms last-cleaned last-searched))
+               (do
+                 (log/warnf "caught an unknown command[%s]" (pr-str c))
+                 (recur db total npgms last-cleaned last-searched)))
+             (do
+               (log/info "closed database control channel")
+               (try
+                 (close-readers!)
+                 (.close (:connection db))
+                 (catch Exception e
+                   (log/errorf e "failed closing connection")))))))
 
-      (ca/>!! cc {:cmd :create-db})
-      cc)))
+        (ca/>!! cc {:cmd :create-db})
+        cc))))
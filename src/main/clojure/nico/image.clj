@@ -2,51 +2,85 @@
 (ns nico.image
   (:require [clojure.tools.logging :as log]
             [nico.net :as net])
-  (:import [java.awt Image Component MediaTracker Toolkit]
-           [java.io InputStream ByteArrayInputStream]
-           [java.util LinkedHashMap]
-           [javax.imageio ImageIO]
+  (:import [java.awt GraphicsEnvironment Image RenderingHints Transparency]
+           [java.awt.image BufferedImage]
+           [java.io File InputStream ByteArrayInputStream ByteArrayOutputStream]
+           [java.util HashMap]
+           [java.util.concurrent ExecutorService PriorityBlockingQueue ThreadFactory ThreadPoolExecutor TimeUnit]
+           [java.util.concurrent.atomic AtomicLong]
+           [javax.imageio ImageIO ImageReader]
+           [javax.imageio.stream ImageInputStream]
+           [nico.image DiskCache ThumbnailStore ThumbnailStore$Handle]
            [nico.ui PgmPanelLayout]))
 
-(let [tk (Toolkit/getDefaultToolkit)
-      dummy-component (proxy [Component][])]
-  (defn- image-from-bytes-tk [bs]
-    (when bs
-      (let [img (.createImage tk bs)
-            mt (MediaTracker. dummy-component)]
-        (try
-          (.addImage mt img 1)
-          (.waitForAll mt)
-          img
-          (catch Exception e
-            (log/warnf "failed creating image (%s)" (.getMessage e)))
-          (finally
-            (.removeImage mt img))))))
-  (defn- resize [img width height]
-    (if (and img (instance? Image img)
-             (or (> (.getWidth img nil) width) (> (.getHeight img nil) height)))
-      (let [scaled-img (.getScaledInstance img width height Image/SCALE_AREA_AVERAGING)
-            mt (MediaTracker. dummy-component)]
-        (try
-          (.addImage mt scaled-img 1)
-          (.waitForAll mt)
-          (.flush img)
-          scaled-img
-          (catch Exception e
-            (log/warnf "failed scaling image (%s)" (.getMessage e))
-            img)
-          (finally
-            (.removeImage mt scaled-img))))
-      img)))
+(defn- compatible-image
+  "画面への描画に適した画素形式の、透明色を含むwidth×heightのBufferedImageを返す。"
+  ^BufferedImage [width height]
+  (if (GraphicsEnvironment/isHeadless)
+    (BufferedImage. width height BufferedImage/TYPE_INT_ARGB)
+    (-> (GraphicsEnvironment/getLocalGraphicsEnvironment)
+        .getDefaultScreenDevice
+        .getDefaultConfiguration
+        (.createCompatibleImage width height Transparency/TRANSLUCENT))))
 
-(defn- image-from-bytes-imageio [bs]
+(defn- downscale
+  "イメージをwidth×heightに縮小する。縮小の必要がない場合も画素形式は画面に合わせる。"
+  ^BufferedImage [^BufferedImage src width height]
+  (let [sw (.getWidth src)
+        sh (.getHeight src)
+        [w h] (if (or (> sw width) (> sh height)) [width height] [sw sh])
+        dst (compatible-image w h)
+        g (.createGraphics dst)]
+    (try
+      (doto g
+        (.setRenderingHint RenderingHints/KEY_INTERPOLATION RenderingHints/VALUE_INTERPOLATION_BICUBIC)
+        (.setRenderingHint RenderingHints/KEY_RENDERING RenderingHints/VALUE_RENDER_QUALITY)
+        (.setRenderingHint RenderingHints/KEY_ALPHA_INTERPOLATION RenderingHints/VALUE_ALPHA_INTERPOLATION_QUALITY)
+        (.drawImage src 0 0 w h nil))
+      dst
+      (finally
+        (.dispose g)
+        (.flush src)))))
+
+(defn- image-from-bytes
+  "バイト列からwidth×height以内のイメージを読み込む。
+   大きなイメージは読み込み時に画素を間引いて縮小後の2倍程度の大きさにとどめ、残りを一度の補間で縮小する。"
+  [^bytes bs width height]
   (when bs
-    (with-open [bais (ByteArrayInputStream. bs)]
-      (ImageIO/read bais))))
+    (with-open [^ImageInputStream iis (ImageIO/createImageInputStream (ByteArrayInputStream. bs))]
+      (let [readers (ImageIO/getImageReaders iis)]
+        (when (.hasNext readers)
+          (let [^ImageReader r (.next readers)]
+            (try
+              (.setInput r iis true true)
+              (let [step (max 1 (min (quot (.getWidth r 0) (* 2 width))
+                                     (quot (.getHeight r 0) (* 2 height))))
+                    param (doto (.getDefaultReadParam r)
+                            (.setSourceSubsampling step step 0 0))]
+                (downscale (.read r 0 param) width height))
+              (finally
+                (.dispose r)))))))))
 
-(defn- image-from-url-aux
-  "URLの指すイメージを返す。イメージが存在しない場合はfallback-imageを返し、それ以外のエラーの場合はnilを返す。"
-  [^String url ^Image fallback-image read-fn]
+(defn- image-to-bytes
+  "イメージをPNG形式のバイト列に変換する。"
+  [^Image img]
+  (let [w (.getWidth img nil)
+        h (.getHeight img nil)]
+    (when (and (pos? w) (pos? h))
+      (let [bi (BufferedImage. w h BufferedImage/TYPE_INT_ARGB)
+            g (.createGraphics bi)
+            bos (ByteArrayOutputStream.)]
+        (try
+          (.drawImage g img 0 0 nil)
+          (finally
+            (.dispose g)))
+        (ImageIO/write bi "png" bos)
+        (.toByteArray bos)))))
+
+(defn- image-from-url
+  "URLの指すイメージを返す。取得できなかった場合はnilを返す。
+   以前はここで待ちながら取得を繰り返していたが、イメージ取得スレッドを塞ぐため、再取得は失敗の記録に基づいて後で行う。"
+  [^String url read-fn]
   (let [response @(net/http-get url {:as :byte-array})
         {:keys [status error body]} response]
     (if error
@@ -63,35 +97,202 @@
                 (log/warnf "failed reading image from response %s, %s" url (.getMessage e))))
         (log/warnf "failed fetching image %s" (pr-str response))))))
 
-(defn- image-from-url
-  "URLの指すイメージを返す。イメージが存在しない場合はfallback-imageを返し、それ以外のエラーの場合はnilを返す。"
-  [^String url ^Image fallback-image read-fn]
-  (let [FETCH-INTERVAL-MSEC 1000
-        FETCH-LIMIT 10]
-    (loop [retry 1]
-      (if (= FETCH-LIMIT retry)
-        fallback-image
-        (or (image-from-url-aux url fallback-image read-fn)
-            (do
-              (log/warnf "retry (%d) fetching image (%s)" retry url)
-              (Thread/sleep (* retry FETCH-INTERVAL-MSEC))
-              (recur (inc retry))))))))
-
-(let [CACHE-SIZE 1024
+(let [STORE-BYTES (* 32 1024 1024) ; メモリ上に置くサムネイルの上限バイト。ヒープ外に確保する
+      DISK-SLOTS 8192 ; ディスクキャッシュの索引のスロット数。この3/4まで保存する
+      DISK-BYTES (* 32 1024 1024) ; ディスクキャッシュの上限バイト
+      DISK-TTL (* 7 24 60 60 1000) ; ディスクキャッシュのイメージを使う期間ミリ秒。コミュニティアイコンはめったに変わらない
+      disk (atom nil) ; 縮小済みのイメージを保存するDiskCache
       DEFAULT-WIDTH (.width PgmPanelLayout/ICON_SIZE)
       DEFAULT-HEIGHT (.height PgmPanelLayout/ICON_SIZE)
-      image-cache (proxy [LinkedHashMap] [(inc CACHE-SIZE) 1.1 true]
-                    (removeEldestEntry [entry]
-                      (if (> (proxy-super size) CACHE-SIZE)
-                        (do
-                          (log/debugf "Remove eldest image (%s)" (.. entry getKey))
-                          (.. entry getValue flush)
-                          true)
-                        false)))]
-  (defn image [^String url]
-    (or (locking image-cache (.get image-cache url))
-        (when-let [img (-> url
-                           (image-from-url nil image-from-bytes-imageio)
-                           (resize DEFAULT-WIDTH DEFAULT-HEIGHT))]
-          (locking image-cache (.put image-cache url img))
-          img))))
+      store (ThumbnailStore. DEFAULT-WIDTH DEFAULT-HEIGHT STORE-BYTES)
+      decodes (AtomicLong.)] ; ディスクあるいはネットワークから読み込んでデコードした数
+  (defn cached
+    "メモリにあればURLの指すサムネイルのハンドル(ThumbnailStore$Handle)を返す。なければnilを返す。
+     ハンドルを使い終わったら.releaseする。"
+    [^String url]
+    (.acquire store url))
+
+  (defn cached?
+    "メモリにURLの指すサムネイルがあるかを返す。"
+    [^String url]
+    (.contains store url))
+
+  (defn stats
+    "メモリ上のサムネイルの統計を返す。"
+    []
+    {:count (.count store) :pinned (.pinned store) :bytes (.bytes store) :capacity (.capacity store)
+     :hits (.hits store) :misses (.misses store) :evictions (.evictions store) :rejections (.rejections store)
+     :decodes (.get decodes)})
+
+  (defn open-disk-cache!
+    "縮小済みのイメージをディレクトリdirに保存し、次回以降の起動でも使えるようにする。"
+    [^File dir]
+    (try
+      (reset! disk (DiskCache. dir DISK-SLOTS DISK-BYTES DISK-TTL))
+      (log/infof "opened the image cache %s (%d images, %d bytes)" dir (.count ^DiskCache @disk) (.bytes ^DiskCache @disk))
+      (catch Exception e
+        (log/warnf e "failed opening the image cache %s" dir))))
+
+  (defn close-disk-cache! []
+    (when-let [^DiskCache dc @disk]
+      (log/infof "closing the image cache (%d hits, %d misses, %d evictions, %d images, %d bytes)"
+                 (.hits dc) (.misses dc) (.evictions dc) (.count dc) (.bytes dc))
+      (log/infof "thumbnails in memory: %s" (pr-str (stats)))
+      (reset! disk nil)
+      (.close dc)))
+
+  (defn- image-from-disk [^String url]
+    (when-let [^DiskCache dc @disk]
+      (when-let [bs (.get dc url)]
+        (try
+          (image-from-bytes bs DEFAULT-WIDTH DEFAULT-HEIGHT)
+          (catch Exception e
+            (log/warnf "failed reading cached image %s, %s" url (.getMessage e)))))))
+
+  (defn- image-from-net [^String url]
+    (when-let [img (image-from-url url #(image-from-bytes % DEFAULT-WIDTH DEFAULT-HEIGHT))]
+      (when-let [^DiskCache dc @disk]
+        (try
+          (when-let [bs (image-to-bytes img)]
+            (.put dc url bs))
+          (catch Exception e
+            (log/warnf "failed caching image %s, %s" url (.getMessage e)))))
+      img))
+
+  (defn- load-image
+    "URLの指すサムネイルのハンドルを返す。メモリ、ディスクのキャッシュの順に探し、なければ取得する。
+     取得したイメージの画素はメモリ上のストアに写し、ヒープには残さない。
+     ストアのサムネイルはパネルどうしで共有し、最後のハンドルが手放されるまで追い出さないので、表示中のものを再びデコードすることはない。"
+    [^String url]
+    (or (cached url)
+        (when-let [^BufferedImage img (or (image-from-disk url) (image-from-net url))]
+          (.incrementAndGet decodes)
+          (try
+            (or (.put store url img)
+                (log/warnf "no room for thumbnail (%s): %s" url (pr-str (stats))))
+            (finally
+              (.flush img)))))))
+
+;; イメージ取得スレッドに渡すタスク。優先度priの小さいもの、同じなら受け付けた順snの小さいものから実行される。
+(deftype ^{:private true} LoadTask [pri sn f]
+  Runnable
+  (run [_] (f))
+  Comparable
+  (compareTo [_ o]
+    (let [^LoadTask o o]
+      (compare [pri sn] [(.pri o) (.sn o)]))))
+
+(let [NTHREADS 4 ; イメージ取得スレッド数
+      PRIORITIES {:visible 0 :normal 1 :prefetch 2} ; 画面に表示されているもの、それ以外、先読みの順に取得する
+      BACKOFF-MSEC 10000 ; 取得に失敗したURLの再取得を控える時間ミリ秒。失敗が続くと倍にしていく
+      BACKOFF-MAX (* 30 60000) ; 再取得を控える時間の上限ミリ秒
+      n (atom 0)
+      sn (AtomicLong.)
+      ^ExecutorService loaders (ThreadPoolExecutor.
+                                NTHREADS NTHREADS 0 TimeUnit/MILLISECONDS (PriorityBlockingQueue.)
+                                (reify ThreadFactory
+                                  (newThread [_ r]
+                                    (doto (Thread. ^Runnable r (str "image-loader-" (swap! n inc)))
+                                      (.setDaemon true)))))
+      inflight (HashMap.) ; 取得中のURL。key: URL, value: {:callbacks [コールバック] :pri 優先度 :running 取得を始めたか}
+      failures (HashMap.)] ; 取得に失敗したURL。key: URL, value: {:n 連続失敗数 :until 再取得を控える期限}
+  (letfn [(backing-off? [url]
+            (locking failures
+              (when-let [{:keys [until]} (.get failures url)]
+                (< (System/currentTimeMillis) until))))
+          (record! [url img]
+            (locking failures
+              (if img
+                (.remove failures url)
+                (let [now (System/currentTimeMillis)
+                      n (inc (get (.get failures url) :n 0))
+                      backoff (min BACKOFF-MAX (* BACKOFF-MSEC (bit-shift-left 1 (min 16 (dec n)))))]
+                  (log/debugf "back off fetching image (%s) for %d msec" url backoff)
+                  (.put failures url {:n n :until (+ now backoff)})
+                  ;; 期限の過ぎた記録がたまりすぎないようにする
+                  (when (< 1024 (.size failures))
+                    (let [it (.iterator (.values failures))]
+                      (while (.hasNext it)
+                        (when (< (:until (.next it)) now)
+                          (.remove it)))))))))
+          (load! [url]
+            ;; 同じURLのタスクが優先度を上げて複数積まれることがあるので、最初に実行されたものだけが取得する
+            (when (locking inflight
+                    (when-let [e (.get inflight url)]
+                      (when-not (:running e)
+                        (.put inflight url (assoc e :running true))
+                        true)))
+              (let [^ThumbnailStore$Handle h (try
+                                               (load-image url)
+                                               (catch Exception e
+                                                 (log/warnf e "failed loading image (%s)" url)))]
+                (record! url h)
+                ;; 待っていたものそれぞれに参照を渡す。呼び出し中に参照が残らないよう、先に全て取ってから手放す
+                (let [fs (locking inflight (:callbacks (.remove inflight url)))
+                      hs (doall (map (fn [_] (when h (.retain h))) fs))]
+                  (when h (.release h))
+                  (doseq [[f h] (map vector fs hs)]
+                    (try
+                      (f h)
+                      (catch Exception e
+                        (log/warnf e "failed calling back with image (%s)" url))))))))]
+    (defn image-async
+      "URLの指すサムネイルを取得し、f(ハンドル)を呼ぶ。取得できなかった場合はf(nil)を呼ぶ。
+       fはハンドルを使い終わったら.releaseする。
+       キャッシュにあるか、最近取得に失敗していれば呼び出し元のスレッドで直ちに、なければイメージ取得スレッドで取得後に呼ぶ。
+       同じURLを取得中であれば新たに取得せず、その結果を待つ。priorityは:visible :normal(省略時) :prefetchのいずれか。"
+      [^String url f & [priority]]
+      (let [pri (get PRIORITIES priority 1)]
+        (if-let [h (and url (cached url))]
+          (f h)
+          (if (or (nil? url) (backing-off? url))
+            (f nil)
+            (when (locking inflight
+                    (if-let [e (.get inflight url)]
+                      (do
+                        (.put inflight url (-> e (update-in [:callbacks] conj f) (assoc :pri (min pri (:pri e)))))
+                        ;; 待っている間に優先度が上がった場合は、その優先度でも積んでおく
+                        (and (not (:running e)) (< pri (:pri e))))
+                      (do
+                        (.put inflight url {:callbacks [f] :pri pri :running false})
+                        true)))
+              (.execute loaders (LoadTask. pri (.getAndIncrement sn) #(load! url))))))))
+
+    (defn image
+      "URLの指すサムネイルのハンドルを返す。取得できなければnilを返す。取得するまで呼び出し元のスレッドを待たせる。
+       返したハンドルの参照は呼び出し元のものになるので、使い終わったら.releaseするか、
+       PgmPanelなど参照を引き受けるものに渡す。その場で使うだけならwith-imageを用いる。"
+      [^String url]
+      (let [p (promise)]
+        (image-async url #(deliver p %))
+        @p))
+
+    (defn images-async
+      "URLのリストが指すサムネイルを全て取得し、f(取得できたもののハンドルのリスト)を呼ぶ。"
+      [urls f & [priority]]
+      (if (seq urls)
+        (let [imgs (object-array (count urls))
+              remain (atom (count urls))]
+          (doseq [[i url] (map-indexed vector urls)]
+            (image-async url (fn [h]
+                               (aset imgs i h)
+                               (when (zero? (swap! remain dec))
+                                 (f (vec (remove nil? imgs)))))
+                         priority)))
+        (f [])))
+
+    (defn prefetch
+      "URLのリストが指すサムネイルのうち、メモリにないものをイメージ取得スレッドで取得しておく。"
+      [urls]
+      (doseq [url (distinct urls) :when (and url (not (cached? url)))]
+        (image-async url (fn [^ThumbnailStore$Handle h] (when h (.release h))) :prefetch)))))
+
+(defmacro with-image
+  "URLの指すサムネイルのハンドル(取得できなければnil)をhに束縛してbodyを評価し、終わったらハンドルを手放す。
+   bodyの外にハンドルを持ち出してはならない。"
+  [[h url] & body]
+  `(let [~h (image ~url)]
+     (try
+       ~@body
+       (finally
+         (when-let [^ThumbnailStore$Handle h# ~h] (.release h#))))))
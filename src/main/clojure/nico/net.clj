@@ -1,16 +1,285 @@
 ;; -*- coding: utf-8-unix -*-
 (ns nico.net
-  (:require [org.httpkit.client :as http]))
+  (:require [clojure.core.async :as ca]
+            [clojure.tools.logging :as log]
+            [org.httpkit.client :as http])
+  (:import [java.io BufferedInputStream BufferedOutputStream ByteArrayInputStream ByteArrayOutputStream
+            Closeable DataInputStream DataOutputStream EOFException FileInputStream FileOutputStream
+            FilterInputStream InputStream IOException OutputStream]
+           [java.net Socket]
+           [java.util Arrays]
+           [java.util.zip GZIPInputStream GZIPOutputStream]))
+
+;; 時計 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;; 記録の再生時は記録された時刻から指定した速さで進む時計に切り替える。
+;; 番組情報の取得時刻や取得間隔の計算にはSystem/currentTimeMillisではなくnowを用いること。
+
+(let [clock (atom {:origin nil :base 0 :speed 1.0})] ; originがnilの間は実時間
+  (defn set-clock!
+    "時計を、呼び出した時点でbase(ミリ秒)を指し実時間のspeed倍の速さで進むように設定する。
+     引数を省略すると実時間に戻す。"
+    ([] (reset! clock {:origin nil :base 0 :speed 1.0}))
+    ([base speed]
+     {:pre [(pos? speed)]}
+     (reset! clock {:origin (System/currentTimeMillis) :base base :speed (double speed)})))
+
+  (defn now
+    "現在時刻(ミリ秒)を返す。"
+    []
+    (let [{:keys [origin base speed]} @clock
+          t (System/currentTimeMillis)]
+      (if origin (+ base (long (* speed (- t origin)))) t)))
+
+  (defn speed [] (:speed @clock))
+
+  (defn- real-msec [msec] (max 0 (long (/ msec (:speed @clock))))))
+
+(defn sleep
+  "時計の上でmsecミリ秒経過するまで呼び出し元スレッドを止める。"
+  [msec]
+  (Thread/sleep (real-msec msec)))
+
+(defn timeout
+  "時計の上でmsecミリ秒経過すると閉じるチャネルを返す。"
+  [msec]
+  (ca/timeout (real-msec msec)))
+
+;; 通信の記録と再生 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;; アーカイブはgzipで圧縮したレコードの並びである。各レコードは次の形式をとる。
+;;   種別(byte) 時刻(long)
+;;   種別がHTTPの場合のみ: URL(UTF) status(short) ETag(UTF) Last-Modified(UTF)
+;;   本体の長さ(int) 本体(byte[])
+;; HTTPのレスポンス(RSS、番組表、番組ページ、サムネイルなど)と、アラートサーバーから受信したバイト列を記録する。
+
+(def ^{:private true} KIND-HTTP 1)
+(def ^{:private true} KIND-ALERT 2)
+
+(defn- write-record! [^DataOutputStream dos {:keys [kind time url status etag last-modified ^bytes body]}]
+  (.writeByte dos (int kind))
+  (.writeLong dos time)
+  (when (= KIND-HTTP kind)
+    (.writeUTF dos url)
+    (.writeShort dos (int status))
+    (.writeUTF dos (or etag ""))
+    (.writeUTF dos (or last-modified "")))
+  (.writeInt dos (alength body))
+  (.write dos body))
+
+(defn- read-record [^DataInputStream dis]
+  (try
+    (let [kind (.readByte dis)
+          time (.readLong dis)
+          rec (if (= KIND-HTTP kind)
+                (let [url (.readUTF dis)
+                      status (.readShort dis)
+                      etag (.readUTF dis)
+                      last-modified (.readUTF dis)]
+                  {:url url :status status
+                   :etag (when (seq etag) etag) :last-modified (when (seq last-modified) last-modified)})
+                {})
+          body (byte-array (.readInt dis))]
+      (.readFully dis body)
+      (assoc rec :kind kind :time time :body body))
+    (catch EOFException _)))
+
+(defn read-archive
+  "pathのアーカイブを読み込み、レコードのベクタを返す。"
+  [path]
+  (with-open [dis (-> path FileInputStream. BufferedInputStream. GZIPInputStream. DataInputStream.)]
+    (loop [recs (transient [])]
+      (if-let [rec (read-record dis)]
+        (recur (conj! recs rec))
+        (persistent! recs)))))
+
+(defn- url-path [^String url]
+  (let [i (.indexOf url "?")]
+    (if (neg? i) url (.substring url 0 i))))
+
+(let [state (atom nil)] ; 記録中は{:out アーカイブ}、再生中は{:http {URL [レコード]} :path {クエリを除いたURL [レコード]} :alert 受信データ}
+  (defn start-recording!
+    "以降の通信をpathのアーカイブに記録する。"
+    [path]
+    (let [dos (-> path (FileOutputStream.) (BufferedOutputStream.) (GZIPOutputStream.) (DataOutputStream.))]
+      (reset! state {:out dos})
+      (log/infof "recording network traffic to %s" path)))
+
+  (defn start-replay!
+    "pathのアーカイブを読み込み、以降の通信を記録された内容で置き換える。
+     時計は最初のレコードの時刻から実時間のspeed倍の速さで進む。"
+    [path speed]
+    (let [recs (read-archive path)
+          https (filter #(= KIND-HTTP (:kind %)) recs)]
+      (reset! state {:http (group-by :url https)
+                     :path (group-by (comp url-path :url) https)
+                     :alert (atom (filter #(= KIND-ALERT (:kind %)) recs))})
+      (set-clock! (or (:time (first recs)) (System/currentTimeMillis)) speed)
+      (log/infof "replaying %d records from %s (x%.1f)" (count recs) path (double speed))))
+
+  (defn stop-capture!
+    "記録または再生を終える。"
+    []
+    (when-let [^DataOutputStream dos (:out @state)]
+      (locking dos (.close dos)))
+    (reset! state nil)
+    (set-clock!))
+
+  (defn- recording? [] (boolean (:out @state)))
+  (defn- replaying? [] (boolean (:http @state)))
+
+  (defn- record! [rec]
+    (when-let [^DataOutputStream dos (:out @state)]
+      (try
+        (locking dos (write-record! dos (assoc rec :time (now))))
+        (catch IOException e
+          (log/warnf "failed recording (%s)" (.getMessage e))))))
+
+  (defn- replayed-response
+    "urlに対して記録されたレスポンスのうち、現在時刻までに受信された最新のものを返す。
+     まだ受信されていなければ最初のものを返す。クエリが異なるだけのURL(チケットつきのAPIなど)も対象とする。"
+    [url]
+    (when-let [recs (or (get-in @state [:http url]) (get-in @state [:path (url-path url)]))]
+      (let [t (now)]
+        (or (last (take-while #(<= (:time %) t) recs)) (first recs)))))
+
+  (defn- replayed-alerts [] (:alert @state)))
+
+(defn- as-body [^bytes bs as]
+  (condp = as
+    :stream (ByteArrayInputStream. bs)
+    :byte-array bs
+    (String. bs "UTF-8")))
+
+(defn- request
+  "methodでリクエストを行う。記録中はレスポンスを記録し、再生中は記録されたレスポンスを返す。"
+  [method url {:keys [as] :as opts} callback]
+  (cond
+    (replaying?) (let [{:keys [status etag last-modified body]} (replayed-response url)
+                       response {:opts opts
+                                 :status (or status 404)
+                                 :headers (cond-> {}
+                                            etag (assoc :etag etag)
+                                            last-modified (assoc :last-modified last-modified))
+                                 :body (as-body (or body (byte-array 0)) as)}]
+                   (doto (promise) (deliver (callback response))))
+    (recording?) (method url (assoc opts :as :byte-array)
+                         (fn [{:keys [status headers body error] :as response}]
+                           (callback
+                            (if error
+                              response
+                              (let [bs (or body (byte-array 0))] ; 304などではbodyが無い
+                                (record! {:kind KIND-HTTP :url url :status status
+                                          :etag (:etag headers) :last-modified (:last-modified headers) :body bs})
+                                (assoc response :body (as-body bs as)))))))
+    :else (method url opts callback)))
 
 (let [TIMEOUT-MSEC 10000
       HTTP-OPTS {:user-agent "NiconamaAlert.clj"
                  :timeout TIMEOUT-MSEC
                  :follow-redirects true}]
-  (defn http-get
-    "指定されたurlにGETリクエストを行い、レスポンスがFutureで返る。"
-    [url & opts]
-    (http/get url (merge HTTP-OPTS (first opts))))
+  (let [validators (atom {})] ; 条件付きGET用。key: url, val: {:etag [ETag] :last-modified [Last-Modified]}
+    (defn http-get
+      "指定されたurlにGETリクエストを行い、レスポンスがFutureで返る。
+       optsに:conditional trueを指定すると、前回のレスポンスにETagやLast-Modifiedがあった場合に
+       条件付きGETとする。内容が変わっていなければstatusが304のレスポンスが返る。
+       :conditional falseを指定すると、条件付きGETにはしないがレスポンスのETagやLast-Modifiedは記録する。"
+      [url & opts]
+      (let [{:keys [conditional] :as opts} (merge HTTP-OPTS (first opts))
+            record? (contains? opts :conditional)
+            opts (dissoc opts :conditional)]
+        (if record?
+          (let [{:keys [etag last-modified]} (when conditional (get @validators url))
+                headers (cond-> (or (:headers opts) {})
+                          etag (assoc "If-None-Match" etag)
+                          last-modified (assoc "If-Modified-Since" last-modified))]
+            (request http/get url (assoc opts :headers headers)
+                     (fn [{:keys [status headers] :as response}]
+                       (when (= 200 status)
+                         (let [v (cond-> {}
+                                   (:etag headers) (assoc :etag (:etag headers))
+                                   (:last-modified headers) (assoc :last-modified (:last-modified headers)))]
+                           (if (empty? v)
+                             (swap! validators dissoc url)
+                             (swap! validators assoc url v))))
+                       response)))
+          (request http/get url opts identity)))))
   (defn http-post
     "指定されたurlにPOSTリクエストを行い、レスポンスがFutureで返る。"
     [url & opts]
-    (http/post url (merge HTTP-OPTS (first opts)))))
+    (request http/post url (merge HTTP-OPTS (first opts)) identity)))
+
+(deftype AlertConnection [^InputStream in ^OutputStream out ^Closeable resource]
+  Closeable
+  (close [_] (.close resource)))
+
+(defn- recording-stream
+  "読み込んだバイト列を記録するInputStreamを返す。"
+  [^InputStream is]
+  (proxy [FilterInputStream] [is]
+    (read
+      ([] (let [b (byte-array 1)]
+            (if (pos? (.read ^InputStream this b 0 1)) (bit-and 0xFF (aget b 0)) -1)))
+      ([^bytes b] (.read ^InputStream this b 0 (alength b)))
+      ([^bytes b off len]
+       (let [n (int (proxy-super read b off len))]
+         (when (pos? n)
+           (record! {:kind KIND-ALERT :body (Arrays/copyOfRange b (int off) (int (+ off n)))}))
+         n)))))
+
+(defn- replay-stream
+  "記録された受信データを記録された時刻になるまで待ってから返すInputStreamを返す。
+   recsは全ての接続で共有する残りのレコードのatomである。"
+  [recs]
+  (let [pos (atom 0)] ; 先頭レコードの読み出し位置
+    (proxy [InputStream] []
+      (read
+        ([] (let [b (byte-array 1)]
+              (if (pos? (.read ^InputStream this b 0 1)) (bit-and 0xFF (aget b 0)) -1)))
+        ([^bytes b] (.read ^InputStream this b 0 (alength b)))
+        ([^bytes b off len]
+         (if-let [{:keys [time ^bytes body]} (first @recs)]
+           (let [wait (- time (now))
+                 p @pos
+                 n (min len (- (alength body) p))]
+             (when (pos? wait) (sleep wait))
+             (System/arraycopy body p b off n)
+             (if (= (+ p n) (alength body))
+               (do (swap! recs rest) (reset! pos 0))
+               (reset! pos (+ p n)))
+             n)
+           -1))))))
+
+(defn alert-connection
+  "アラートサーバーaddr:portに接続する。受信用のInputStreamはinで、送信用のOutputStreamはoutで得られる。
+   記録中は受信したバイト列を記録し、再生中は接続せずに記録されたバイト列を返す。"
+  [^String addr ^long port so-timeout]
+  (if (replaying?)
+    (let [recs (replayed-alerts)]
+      (when (empty? @recs)
+        (throw (IOException. "no more recorded alerts")))
+      (AlertConnection. (replay-stream recs) (ByteArrayOutputStream.) (reify Closeable (close [_]))))
+    (let [sock (doto (Socket. addr (int port)) (.setSoTimeout (int so-timeout)))
+          is (.getInputStream sock)]
+      (AlertConnection. (if (recording?) (recording-stream is) is) (.getOutputStream sock) sock))))
+
+(defn token-bucket
+  "rate(回/秒)の速さでトークンが補充され、最大burst個まで貯まるトークンバケットを返す。
+   同一サーバーへのリクエストを並行に行う際の間隔制御に用いる。"
+  [rate burst]
+  {:pre [(pos? rate) (pos? burst)]}
+  {:rate (double rate) :burst (double burst) :state (atom [(double burst) (System/nanoTime)])})
+
+(defn acquire!
+  "トークンバケットtbからトークンを一つ取り出す。トークンが無ければ補充されるまで呼び出し元スレッドをブロックする。
+   記録の再生を速めている場合はその分だけ速く補充される。"
+  [{:keys [rate burst state] :as tb}]
+  (let [rate (* rate (speed))]
+    (loop []
+      (let [[tokens last :as old] @state
+            now (System/nanoTime)
+            tokens (min burst (+ tokens (/ (* rate (- now last)) 1e9)))]
+        (if (>= tokens 1.0)
+          (when-not (compare-and-set! state old [(dec tokens) now])
+            (recur))
+          (do
+            (Thread/sleep (max 1 (long (/ (* 1000 (- 1.0 tokens)) rate))))
+            (recur)))))))
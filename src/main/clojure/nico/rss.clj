@@ -5,24 +5,17 @@
             [clojure.data.zip.xml :as dzx]
             [clojure.string :as cs]
             [clojure.tools.logging :as log]
-            [clojure.xml :as xml]
             [clojure.zip :as zip]
+            [nico.config :as config]
             [nico.net :as net]
             [nico.pgm :as pgm]
             [nico.scrape :as scrape]
             [nico.string :as s])
-  (:import [java.io BufferedReader InputStream InputStreamReader]
+  (:import [java.io BufferedReader InputStream InputStreamReader Reader]
            [java.util Locale]
            [java.util.concurrent TimeUnit]
-           [org.xml.sax InputSource]
            [org.apache.commons.lang3.time FastDateFormat]
-           [org.htmlcleaner HtmlCleaner]
-           [nico.rss XmlReader]))
-
-(let [cleaner (HtmlCleaner.)]
-  (defn- remove-tag [^String s]
-    (when-not (cs/blank? s)
-      (-> (.clean cleaner s) .getText .toString))))
+           [nico.rss RssParser RssParser$Handler RssParser$Item XmlReader]))
 
 (defn- child-elements [node tag]
   (->> (:content node) (filter #(= tag (:tag %)))))
@@ -35,25 +28,29 @@
 
 (defn- parse-date [s fmt] (-> fmt (.parse s) .getTime))
 
+(defn- type-num [type-str]
+  (if type-str
+    (condp = type-str
+      "community" 0
+      "channel" 1
+      2) 2)) ; "official"
+
 (let [fmt (FastDateFormat/getInstance "yyyy-MM-dd HH:mm:ss")]
-  (defn create-official-pgm [item fetched_at]
+  (defn- official-pgm
+    "公式放送RSSのitemから取り出した値(テキストのまま)から番組情報を生成する。"
+    [{:keys [guid title open_time start_time description link thumbnail type] :as fields} fetched_at]
     (try
-      (let [id (-> item (child-content :guid) s/nstr)
-            title (-> item (child-content :title) (s/unescape :html) s/nstr)
-            open_time (-> item (child-content :nicolive:open_time) (parse-date fmt))
-            start_time (-> item (child-content :nicolive:start_time) (parse-date fmt))
-            description (if-let [dstr (child-content item :description)]
-                          (-> dstr (s/unescape :html) remove-tag s/del-dup s/nstr) "")
+      (let [id (s/nstr guid)
+            title (-> title (s/unescape :html) s/nstr)
+            open_time (parse-date open_time fmt)
+            start_time (parse-date start_time fmt)
+            description (s/html->text description)
             category "" ; ない
-            link (-> item (child-content :link) s/nstr)
-            thumbnail (-> item (get-child-attr :media:thumbnail :url) s/nstr)
+            link (s/nstr link)
+            thumbnail (s/pooled thumbnail)
             owner_name "" ; ない
             member_only 0 ; ない
-            type (if-let [type-str (child-content item :nicolive:type)]
-                   (condp = type-str
-                     "community" 0
-                     "channel" 1
-                     2) 2) ; "official"
+            type (type-num type)
             comm_name "" ; ない
             comm_id nil] ; ない
         (if (and (not-every? cs/blank? [id title link thumbnail]) description open_time start_time)
@@ -62,135 +59,343 @@
           (log/warnf "couldn't create official pgm: [%s %s %s %s %s, %s %s]"
                      id title description link thumbnail open_time start_time)))
       (catch Exception e
-        (log/warnf "failed creating pgm from official RSS: %s" (-> item pr-str s/nstr))))))
+        (log/warnf "failed creating pgm from official RSS: %s" (-> fields pr-str s/nstr))))))
 
 (let [fmt (FastDateFormat/getInstance "EEE, dd MMM yyyy HH:mm:ss Z" Locale/ENGLISH)]
-  (defn create-pgm [item fetched_at]
+  (defn- user-pgm
+    "ユーザー生放送RSSのitemから取り出した値(テキストのまま)から番組情報を生成する。"
+    [{:keys [guid title pubDate description categories link thumbnail owner_name member_only type
+             comm_name comm_id] :as fields} fetched_at]
     (try
-      (let [id (-> item (child-content :guid) s/nstr)
-            title (-> item (child-content :title) (s/unescape :html) s/nstr)
-            open_time (-> item (child-content :pubDate) (parse-date fmt))
+      (let [id (s/nstr guid)
+            title (-> title (s/unescape :html) s/nstr)
+            open_time (parse-date pubDate fmt)
             start_time open_time
-            description (if-let [dstr (child-content item :description)]
-                          (-> dstr (s/unescape :html) remove-tag s/del-dup s/nstr) "")
-            category (->> (child-elements item :category)
-                          (map #(-> % :content first))
-                          (cs/join ",")
-                          s/nstr)
-            link (-> item (child-content :link) s/nstr)
-            thumbnail (-> item (get-child-attr :media:thumbnail :url) s/nstr)
-            owner_name (-> item (child-content :nicolive:owner_name) s/nstr)
-            member_only (-> item (child-content :nicolive:member_only) Boolean/parseBoolean {true 1 false 0})
-            type (if-let [type-str (child-content item :nicolive:type)]
-                   (condp = type-str
-                     "community" 0
-                     "channel" 1
-                     2) 2) ; "official"
-            comm_name (-> item (child-content :nicolive:community_name) s/nstr)
-            comm_id (-> item (child-content :nicolive:community_id) s/nstr)]
-        ;;(when (cs/blank? title) (log/infof "title is blank [%s -> %s]" item title))
+            description (s/html->text description)
+            category (->> categories (cs/join ",") s/pooled)
+            link (s/nstr link)
+            thumbnail (s/pooled thumbnail)
+            owner_name (s/pooled owner_name)
+            member_only (-> member_only Boolean/parseBoolean {true 1 false 0})
+            type (type-num type)
+            comm_name (s/pooled comm_name)
+            comm_id (s/pooled comm_id)]
+        ;;(when (cs/blank? title) (log/infof "title is blank [%s -> %s]" fields title))
         (if (and (not-every? cs/blank? [id title link thumbnail]) description open_time start_time)
           (pgm/->Pgm id title open_time start_time description category link thumbnail owner_name
                      member_only type comm_name comm_id fetched_at fetched_at)
           (log/debugf "couldn't create pgm: [%s %s %s %s %s, %s %s]"
                       id title description link thumbnail open_time start_time)))
       (catch Exception e
-        (log/warnf "failed creating pgm from RSS: %s" (-> item pr-str s/nstr))))))
+        (log/warnf "failed creating pgm from RSS: %s" (-> fields pr-str s/nstr))))))
 
-(defn- get-programs-count
-  "get the total programs count."
-  [rss]
-  (when-let [total-count (first (dzx/xml-> (zip/xml-zip rss) :channel :nicolive:total_count dzx/text))]
+;; clojure.xmlでパースしたDOMから番組情報を生成する。
+
+(defn create-official-pgm [item fetched_at]
+  (official-pgm {:guid (child-content item :guid)
+                 :title (child-content item :title)
+                 :open_time (child-content item :nicolive:open_time)
+                 :start_time (child-content item :nicolive:start_time)
+                 :description (child-content item :description)
+                 :link (child-content item :link)
+                 :thumbnail (get-child-attr item :media:thumbnail :url)
+                 :type (child-content item :nicolive:type)}
+                fetched_at))
+
+(defn create-pgm [item fetched_at]
+  (user-pgm {:guid (child-content item :guid)
+             :title (child-content item :title)
+             :pubDate (child-content item :pubDate)
+             :description (child-content item :description)
+             :categories (map #(-> % :content first) (child-elements item :category))
+             :link (child-content item :link)
+             :thumbnail (get-child-attr item :media:thumbnail :url)
+             :owner_name (child-content item :nicolive:owner_name)
+             :member_only (child-content item :nicolive:member_only)
+             :type (child-content item :nicolive:type)
+             :comm_name (child-content item :nicolive:community_name)
+             :comm_id (child-content item :nicolive:community_id)}
+            fetched_at))
+
+;; RssParser(StAX)が通知するitemから番組情報を生成する。
+
+(defn item->official-pgm [^RssParser$Item item fetched_at]
+  (official-pgm {:guid (.getGuid item)
+                 :title (.getTitle item)
+                 :open_time (.getOpenTime item)
+                 :start_time (.getStartTime item)
+                 :description (.getDescription item)
+                 :link (.getLink item)
+                 :thumbnail (.getThumbnail item)
+                 :type (.getType item)}
+                fetched_at))
+
+(defn item->pgm [^RssParser$Item item fetched_at]
+  (user-pgm {:guid (.getGuid item)
+             :title (.getTitle item)
+             :pubDate (.getPubDate item)
+             :description (.getDescription item)
+             :categories (.getCategories item)
+             :link (.getLink item)
+             :thumbnail (.getThumbnail item)
+             :owner_name (.getOwnerName item)
+             :member_only (.getMemberOnly item)
+             :type (.getType item)
+             :comm_name (.getCommunityName item)
+             :comm_id (.getCommunityId item)}
+            fetched_at))
+
+(defn- parse-count [^String total-count]
+  (when total-count
     (try
       (Integer/parseInt total-count)
       (catch NumberFormatException e
-        (log/errorf "failed fetching RSS for get programs count: %s" rss)))))
+        (log/errorf "failed fetching RSS for get programs count: %s" total-count)))))
+
+(defn- get-programs-count
+  "get the total programs count."
+  [rss]
+  (parse-count (first (dzx/xml-> (zip/xml-zip rss) :channel :nicolive:total_count dzx/text))))
 
 (defn- items [rss]
   (let [nodes-child (dzx/xml-> (zip/xml-zip rss) :channel dz/children)]
     (for [x nodes-child :when (= :item (:tag (first x)))] (first x))))
 
+(defn- valid-pgm? [pgm]
+  (and pgm (:id pgm) (:title pgm) (:open_time pgm) (:start_time pgm)))
+
 (defn extract [rss pgm-fn]
-  (let [now (System/currentTimeMillis)]
+  (let [now (net/now)]
     (->> (items rss)
          (map #(pgm-fn % now))
-         (filter #(and % (and (:id %) (:title %) (:open_time %) (:start_time %)))))))
-
-(let [INTERVAL-MSEC 500
-      last-fetched (atom 0)
-      o (Object.)]
-  (defn- get-nico-rss [^String url extract-fn]
-    (locking o
-      (let [rest-interval (- (+ INTERVAL-MSEC @last-fetched) (System/currentTimeMillis))]
-      (when (pos? rest-interval) (Thread/sleep rest-interval))
-      (let [response @(net/http-get url {:as :stream}) ;; calling synchronously
-            {:keys [status error]} response]
-        (reset! last-fetched (System/currentTimeMillis))
-        (if error
-          (log/warnf "failed fetching RSS (%s) with an error (%s)" url error)
-          (condp = status
-            200 (try
-                  (with-open [^InputStream is (:body response)
-                              ^InputStreamReader isr (XmlReader. is)
-                              ^BufferedReader br (BufferedReader. isr)]
-                    (when-let [rss (xml/parse (InputSource. br))]
-                      (extract-fn rss)))
-                  (catch Exception e
-                    (log/warnf "failed extracting RSS from response %s, %s" url (.getMessage e))))
-            404 (log/debugf "The RSS is not found %s" (pr-str response))
-            (log/warnf "failed fetching RSS %s" (pr-str response)))))))))
+         (filter valid-pgm?))))
+
+(defn parse-rss
+  "rdrからRSSを読みながら番組情報を生成し、[総番組数 番組情報のベクタ]を返す。
+   DOMを構築せずにitemを一つずつ番組情報へ変換するため、extractよりも軽量である。
+   item-fnにはitem->pgmまたはitem->official-pgmを指定する。"
+  [^Reader rdr item-fn]
+  (let [now (net/now)
+        total (volatile! nil)
+        pgms (volatile! (transient []))]
+    (RssParser/parse rdr (reify RssParser$Handler
+                           (totalCount [_ c] (vreset! total (parse-count c)))
+                           (item [_ item]
+                             (let [pgm (item-fn item now)]
+                               (when (valid-pgm? pgm) (vswap! pgms conj! pgm))))))
+    [@total (persistent! @pgms)]))
+
+(defn- get-nico-rss
+  "urlのRSSを取得しextract-fnに渡す。リクエストの前にlimiterからトークンを取得し、サーバーへの負荷を抑える。
+   conditionalがtrueなら条件付きGETとし、前回から変更がなかった場合は::not-modifiedを返す。
+   falseでも次の条件付きGETのためにETagやLast-Modifiedは記録する。"
+  [limiter ^String url extract-fn conditional]
+  (net/acquire! limiter)
+  (let [response @(net/http-get url {:as :stream :conditional (boolean conditional)}) ;; calling synchronously
+        {:keys [status error]} response]
+    (if error
+      (log/warnf "failed fetching RSS (%s) with an error (%s)" url error)
+      (condp = status
+        200 (try
+              (with-open [^InputStream is (:body response)
+                          ^InputStreamReader isr (XmlReader. is)
+                          ^BufferedReader br (BufferedReader. isr)]
+                (extract-fn br))
+              (catch Exception e
+                (log/warnf "failed extracting RSS from response %s, %s" url (.getMessage e))))
+        304 ::not-modified
+        404 (log/debugf "The RSS is not found %s" (pr-str response))
+        (log/warnf "failed fetching RSS %s" (pr-str response))))))
 
 (defn- get-programs-from-rss
-  ([] ; ページなしは公式の番組取得。RSSフォーマットが異なる。
-     (get-nico-rss "http://live.nicovideo.jp/rss" #(if % (extract % create-official-pgm) [])))
-  ([page] ; pageは1以上。0で問い合わせると1と同じ結果が返る。また、カテゴリ無しはcommonカテゴリと同じ結果が返る。
+  ([limiter] ; ページなしは公式の番組取得。RSSフォーマットが異なる。
+     (get-nico-rss limiter "http://live.nicovideo.jp/rss" #(second (parse-rss % item->official-pgm)) false))
+  ([limiter page] ; pageは1以上。0で問い合わせると1と同じ結果が返る。また、カテゴリ無しはcommonカテゴリと同じ結果が返る。
      {:pre [(pos? page)]}
-     (get-nico-rss (format "http://live.nicovideo.jp/recent/rss?p=%d" page)
-                   #(if % [(get-programs-count %) (extract % create-pgm)] [nil []])))
-  ([page category] ; pageは1以上。0で問い合わせると1と同じ結果が返るみたい。
+     (get-nico-rss limiter (format "http://live.nicovideo.jp/recent/rss?p=%d" page)
+                   #(parse-rss % item->pgm) false))
+  ([limiter page category conditional] ; pageは1以上。0で問い合わせると1と同じ結果が返るみたい。
+     ;; conditionalがtrueなら内容が変わっていないページは::not-modifiedとなる。全ページを取得し直す場合はfalseにする。
      {:pre [(pos? page)]}
-     (get-nico-rss (format "http://live.nicovideo.jp/recent/rss?tab=%s&p=%d" category page)
-                   #(if % [(get-programs-count %) (extract % create-pgm)] [nil []]))))
+     (get-nico-rss limiter (format "http://live.nicovideo.jp/recent/rss?tab=%s&p=%d" category page)
+                   #(parse-rss % item->pgm) conditional)))
+
+(def ^{:private true} INITIAL-CATS
+  {:common [0 0]     ; 一般
+   :try    [0 0]     ; やってみた
+   :live   [0 0]     ; ゲーム
+   :req    [0 0]     ; 動画紹介
+   :r18    [0 0]     ; R-18
+   :face   [0 0]     ; 顔出し
+   :totu   [0 0]})   ; 凸待ち
+
+(defn- plan-pages
+  "カテゴリの取得状況[acc total]から、nxtページ以降に取得するページ数を返す。
+   1ページ目は総番組数がわからないので1ページのみとし、取得済みのカテゴリは0とする。
+   それ以外はそのカテゴリで既に取得したページの平均番組数から残りのページ数を見積もり、max-pagesを上限とする。"
+  [[acc total] nxt max-pages]
+  (cond
+   (= 1 nxt) 1
+   (<= total acc) 0
+   :else (let [per-page (max 1 (quot acc (dec nxt)))]
+           (-> (/ (- total acc) (double per-page)) Math/ceil int (min max-pages) (max 1)))))
+
+(defn- digest
+  "番組情報のうち、取得時刻以外の内容から求めたハッシュ値を返す。"
+  [pgm]
+  (hash [(:title pgm) (:open_time pgm) (:start_time pgm) (:description pgm) (:category pgm)
+         (:thumbnail pgm) (:owner_name pgm) (:member_only pgm) (:comm_name pgm)]))
+
+(defn- known-page?
+  "取得結果のページが既知の番組だけで構成され、内容も変わっていなければtrueを返す。
+   knownはkey: 番組ID, val: [digest 最後に見たサイクル]のマップ。"
+  [known result]
+  (or (= ::not-modified result)
+      (let [pgms (second result)]
+        (and (seq pgms)
+             (every? #(= (first (get known (:id %))) (digest %)) pgms)))))
+
+(defn- forget-unseen!
+  "全ページを取得し終えたncycle回目のサイクルで見なかった番組を終了したものとしてknownから取り除き、そのIDのリストを返す。"
+  [known ncycle]
+  (let [ended (doall (keep (fn [[id [_ seen]]] (when (< seen ncycle) id)) @known))]
+    (swap! known #(apply dissoc % ended))
+    ended))
+
+(defn- merge-cat
+  "カテゴリの取得状況[acc total]に、ページ順に並んだ取得結果[総番組数 番組情報]を反映する。
+   knownが与えられた場合(incrementalモード)、既知の番組だけからなるページがあればそのカテゴリは取得済みとする。"
+  [[acc total] results known]
+  (let [[acc total] (reduce (fn [[acc total] result]
+                              (if (= ::not-modified result)
+                                [acc total]
+                                (let [[ctotal cpgms] result]
+                                  [(+ acc (count cpgms))
+                                   (if ((every-pred number? pos?) ctotal) ctotal total)])))
+                            [acc total] results)]
+    (if (and known (some #(known-page? known %) results))
+      [(max acc total) (max acc total)]
+      [acc total])))
 
 (defn- fetch
-  ([] ;; 公式放送RSS
-     (let [pgms  (get-programs-from-rss)
+  "RSSを取得する。ctxは次のキーを持つマップ。
+   :limiter   リクエスト間隔を制御するトークンバケット
+   :max-pages 一つのカテゴリについて並行に取得する最大ページ数
+   :known     既に取得した番組を保持するatom。key: 番組ID, val: [digest 最後に見たサイクル]
+   :incr      trueならknownを基にカテゴリの取得を打ち切り、条件付きGETで変わっていないページを省く
+   :ncycle    現在の取得サイクル
+   :official  前回取得した公式放送の番組IDのsetを保持するatom。今回なくなった番組は終了したとみなす"
+  ([ctx] ;; 公式放送RSS
+     (let [pgms  (get-programs-from-rss (:limiter ctx))
            npgms (count pgms)
            real-total (or (scrape/scrape-total) 0)]
        (if (pos? npgms)
-         {:page 0 :cats nil :result :success :npgms npgms
-          ;; このcmd-db、vectorだとIOCマクロが作る状態配列(AtomicReferenceArray)にArrayChunkとして、
-          ;; その下にcmd-dbのオブジェクトが参照されたまま残ってしまい、奇妙な形のメモリリークとなる。
-          ;; なぜvectorだとダメなのかまでは追求しきれていない。
-          :cmd-db (if (pos? real-total)
-                    (list {:cmd :set-total :total (+ npgms real-total)}
-                          {:cmd :add-pgms :pgms pgms :force-search false})
-                    {:cmd :add-pgms :pgms pgms :force-search false})
-          :cmd-ui {:status :fetching-rss :page 0 :acc npgms :total nil}}
+         (let [ids (set (map :id pgms))
+               ended (doall (remove ids @(:official ctx)))]
+           (reset! (:official ctx) ids)
+           {:page 0 :cats nil :result :success :npgms npgms
+            ;; このcmd-db、vectorだとIOCマクロが作る状態配列(AtomicReferenceArray)にArrayChunkとして、
+            ;; その下にcmd-dbのオブジェクトが参照されたまま残ってしまい、奇妙な形のメモリリークとなる。
+            ;; なぜvectorだとダメなのかまでは追求しきれていない。
+            :cmd-db (apply list (remove nil? (list (when (pos? real-total) {:cmd :set-total :total (+ npgms real-total)})
+                                                   {:cmd :add-pgms :pgms pgms :force-search false}
+                                                   (when (seq ended) {:cmd :end-pgms :ids ended}))))
+            :cmd-ui {:status :fetching-rss :page 0 :acc npgms :total nil}})
          {:page 0 :cats nil :result :error :npgms npgms
           :cmd-db {:cmd :set-total :total real-total}
           :cmd-ui {:status :fetching-rss :page 0 :acc 0 :total nil}})))
-  ([page cats] ;; ユーザー生放送RSS
-     (let [[ncats pgms] (reduce (fn [[m pgms] [category [acc total]]]
-                                  (if (and (not= 1 page) (>= acc total))
-                                    [(assoc m category [acc total]) pgms]
-                                    (let [[ctotal cpgms] (get-programs-from-rss page (name category))]
-                                      [(assoc m category [(+ acc (count cpgms))
-                                                          (if ((every-pred number? pos?) ctotal) ctotal total)])
-                                       (concat pgms cpgms)])))
-                                [{} []] (or cats {:common [0 0]     ; 一般
-                                                  :try    [0 0]     ; やってみた
-                                                  :live   [0 0]     ; ゲーム
-                                                  :req    [0 0]     ; 動画紹介
-                                                  :r18    [0 0]     ; R-18
-                                                  :face   [0 0]     ; 顔出し
-                                                  :totu   [0 0]}))  ; 凸待ち
+  ([{:keys [limiter max-pages known incr ncycle]} page cats] ;; ユーザー生放送RSS
+     ;; 未取得の番組が残っているカテゴリについて、そのカテゴリの次のページから複数ページをまとめて並行に取得する。
+     ;; catsの値は[取得数計 総番組数 次に取得するページ]で、次のページがなければpageから取得する。
+     ;; 並行度はlimiterによって抑えられる。
+     (let [cats (or cats INITIAL-CATS)
+           ;; カテゴリごとに[次に取得するページ 取得するページ数]を決める
+           plans (reduce (fn [m [category [_ _ nxt :as stat]]]
+                           (let [nxt (if (= 1 page) 1 (or nxt page))
+                                 n (plan-pages stat nxt max-pages)]
+                             (if (pos? n) (assoc m category [nxt n]) m)))
+                         {} cats)
+           last-page (reduce (fn [l [nxt n]] (max l (+ nxt n -1))) page (vals plans))
+           futures (reduce (fn [m [category [nxt n]]]
+                             (assoc m category
+                                    (doall (for [p (range nxt (+ nxt n))]
+                                             (future (get-programs-from-rss limiter p (name category) incr))))))
+                           {} plans)
+           results (reduce (fn [m [category fs]] (assoc m category (doall (map deref fs)))) {} futures)
+           known-pgms @known
+           ncats (reduce (fn [m [category stat]]
+                           (assoc m category (if-let [rs (get results category)]
+                                               (let [[nxt n] (get plans category)]
+                                                 (conj (merge-cat stat rs (when incr known-pgms)) (+ nxt n)))
+                                               stat)))
+                         {} cats)
+           cpgms (reduce (fn [m [category rs]]
+                           (assoc m category (->> rs (remove #(= ::not-modified %)) (mapcat second))))
+                         {} results)
+           nnew (reduce (fn [m [category pgms]]
+                          (assoc m category (count (remove #(contains? known-pgms (:id %)) pgms))))
+                        {} cpgms)
+           pgms (mapcat val cpgms)
            npgms (count pgms)
            acc (->> ncats vals (map first) (apply +))
            total (->> ncats vals (map second) (apply +))]
-       {:page page :result :success :cats ncats :npgms npgms
+       (swap! known #(reduce (fn [m pgm] (assoc m (:id pgm) [(digest pgm) ncycle])) % pgms))
+       {:page last-page :result :success :cats ncats :npgms npgms :nnew nnew
         :cmd-db {:cmd :add-pgms :pgms pgms :force-search (-> npgms pos? not)}
-        :cmd-ui {:status :fetching-rss :page page :acc acc :total total}})))
+        :cmd-ui {:status :fetching-rss :page last-page :acc acc :total total}})))
+
+;; Scheduler ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;; カテゴリごとに新しい番組の出現頻度を観測し、次にそのカテゴリを取得する時刻を決める。
+;; 新しい番組がよく現れるカテゴリほど頻繁に取得する。
+
+(def ^{:private true} RATE-ALPHA 0.3) ; 出現頻度の指数移動平均の係数
+
+(defn- update-sched
+  "今サイクルで取得したカテゴリについて、新しい番組の出現頻度(個/秒)と次回取得時刻を更新する。
+   schedはkey: カテゴリ, val: {:rate [出現頻度] :last [最終取得時刻] :due [次回取得時刻]}のマップ。
+   cycle-newはkey: カテゴリ, val: 今サイクルで見つかった新しい番組数のマップ。"
+  [sched cycle-new now {:keys [target-new min-wait-sec max-wait-sec]}]
+  (reduce (fn [m [category n]]
+            (let [{:keys [rate last]} (get m category)
+                  rate (if last ; 初回は観測間隔がわからないので頻度も求めない
+                         (let [r (/ n (max 1.0 (/ (- now last) 1000.0)))]
+                           (if rate (+ (* RATE-ALPHA r) (* (- 1 RATE-ALPHA) rate)) r))
+                         rate)
+                  wait-sec (cond
+                            (nil? rate) min-wait-sec
+                            (zero? rate) max-wait-sec
+                            :else (-> (/ target-new rate) (max min-wait-sec) (min max-wait-sec)))]
+              (assoc m category {:rate rate :last now :due (+ now (long (* 1000 wait-sec)))})))
+          sched cycle-new))
+
+(defn- next-wait
+  "次のサイクル開始までの待機秒数を返す。最も早く取得時刻を迎えるカテゴリに合わせる。"
+  [sched now {:keys [min-wait-sec max-wait-sec]}]
+  (if (empty? sched)
+    min-wait-sec
+    (-> (->> sched vals (map :due) (apply min))
+        (- now)
+        (quot 1000)
+        (max min-wait-sec)
+        (min max-wait-sec)
+        long)))
+
+(defn- due-cats
+  "サイクル開始時に取得すべきカテゴリの取得状況マップを返す。
+   次回取得時刻を迎えたカテゴリと、まだ一度も取得していないカテゴリが対象である。"
+  [sched now]
+  (let [due (filter #(let [d (get-in sched [% :due])] (or (nil? d) (<= d (+ now 1000))))
+                    (keys INITIAL-CATS))]
+    (select-keys INITIAL-CATS (if (seq due) due (keys INITIAL-CATS)))))
+
+(defn- full-cycle?
+  "ncycle回目のサイクルで全ページを取得し直すかを返す。last-fullは最後に全ページを取得した時刻。
+   incrementalでなければ毎回、そうでなければfull-cycle回に1回、
+   あるいは前回からfull-interval-sec秒が過ぎていれば全ページを取得する。"
+  [ncycle now last-full {:keys [incremental full-cycle full-interval-sec]}]
+  (or (not incremental)
+      (zero? (mod (dec ncycle) full-cycle))
+      (<= (* 1000 full-interval-sec) (- now last-full))))
 
 (defn boot
   "ニコ生RSSを通じて番組情報を取得するfetcherを生成し、コントロールチャネルを返す。
@@ -202,8 +407,9 @@
           {:status :started-api}
    :stopped-rss 終了した。
           {:status :stopped-api}
-   :waiting-rss 次の取得サイクル開始まで待機中。待機間隔はWAITING-INTERVAL(秒)。
-          {:status :waiting-rss :sec [残り秒] :total [全体待機時間]}
+   :waiting-rss 次の取得サイクル開始まで待機中。1秒ごとに発信される。
+          待機時間はカテゴリごとの新しい番組の出現頻度から決まる。
+          {:status :waiting-rss :sec [残り秒] :total [全体待機秒] :cats [次のサイクルで取得するカテゴリのリスト]}
    :fetching-rss RSS取得中。得られた番組情報つき。
           {:status :fetching-rss :page [取得したページ] :acc [今サイクルで取得した番組数計] :total [総番組数]}
 
@@ -212,6 +418,9 @@
           {:cmd :add-pgms :pgms [番組情報] :force-search [番組情報検索するか]}
    :set-total 総番組数を設定する。
           {:cmd :set-total :total [公式・チャンネルの番組数 + ニコ生から得た総番組数] }
+   :end-pgms 終了した番組を伝える。全ページを取得し終えたサイクルで現れなかった番組と、
+          公式放送のRSSから前回からなくなった番組である。
+          {:cmd :end-pgms :ids [番組IDのリスト]}
 
    コントロールチャネルは次のコマンドを受理する。
    :act 今のfetcherの状態によって開始または終了するトグル動作。
@@ -220,26 +429,72 @@
    また、次のコマンドが内部的に使用される。
    :fetch 指定されたページのRSSを取得する。0ページと1ページ以降は異なる。
           {:cmd :fetch} ; 0ページ目は公式・チャンネルの番組
-          {:cmd :fetch :page [ページ番号] :cats [カテゴリごとの取得数計と総番組数からなるマップ]}
-   :wait  1秒待機する。したがって回数＝秒数である。
-          {:cmd :wait, :sec [残り待機回数], :total [全体待機回数]})"
-  [oc-ui oc-db]
-  (let [WAITING-INTERVAL-SEC 180 ; RSS取得サイクル一巡したらこの秒数だけ間隔あけて再開する
-        FETCH-OFFICIAL-INTERVAL-MSEC 600000 ; 公式放送のRSSはそれほど頻繁にチェックする必要はないので間隔をあける
+          {:cmd :fetch :page [ページ番号] :cats [カテゴリごとの取得数計、総番組数、次に取得するページからなるマップ]}
+   :wait  1秒待機する。したがって回数＝秒数である。:secを省略するとサイクル終了とみなし、
+          スケジューラが待機時間を決める。待機にはタイマーを用い、ディスパッチスレッドを占有しない。
+          {:cmd :wait}
+          {:cmd :wait, :sec [残り待機回数], :total [全体待機回数], :cats [次に取得するカテゴリ]}
+
+   引数optsで取得の並行度を調整できる。(nico.config/default-rss-config参照)
+   :rate  RSSリクエストの平均頻度(回/秒)。
+   :burst 連続して発行できるリクエスト数の上限。
+   :pages 一つのカテゴリについて並行して取得する最大ページ数。
+   :incremental trueならば、既に取得済みで内容も変わっていない番組だけのページに達した時点で
+                そのカテゴリの取得を打ち切る。
+   :full-cycle  incrementalモードでも、この回数に1回は全ページを取得し直す。
+                (DB内の番組情報の更新時刻を新しくし、終了した番組を検出するため)
+   :full-interval-sec 取得間隔が長いと:full-cycle回に達するまでの時間も長くなるので、
+                      前回からこの秒数が過ぎていれば回数によらず全ページを取得し直す。
+   :target-new  1回の取得でカテゴリごとに見つけたい新しい番組数。出現頻度とあわせて取得間隔を決める。
+   :min-wait-sec, :max-wait-sec 取得間隔の下限と上限(秒)。
+   :official-interval-sec 公式放送のRSSを取得する間隔(秒)。"
+  [oc-ui oc-db & [opts]]
+  (let [{:keys [rate burst pages incremental full-cycle official-interval-sec] :as opts}
+        (merge (config/default-rss-config) opts)
+        limiter (net/token-bucket rate burst) ; RSS取得間隔を制御する
+        known (atom {}) ; 取得済みの番組。key: 番組ID, val: [digest 最後に見たサイクル]
+        official (atom #{}) ; 前回取得した公式放送の番組ID
+        ;; 公式放送のRSSはそれほど頻繁にチェックする必要はないので間隔をあける
+        FETCH-OFFICIAL-INTERVAL-MSEC (* 1000 official-interval-sec)
         cc (ca/chan)  ; control channel
         wc (ca/chan)] ; worker channel
 
-    (ca/go-loop [curr-cats nil] ; ユーザー生放送カテゴリーごとの取得状況
+    (ca/go-loop [curr-cats nil ; ユーザー生放送カテゴリーごとの取得状況
+                 ncycle 0 ; これまでの取得サイクル数
+                 incr false ; 今のサイクルがincrementalモードか
+                 sched {} ; カテゴリごとの取得スケジュール。update-sched参照
+                 cycle-new {} ; 今のサイクルでカテゴリごとに見つかった新しい番組数
+                 last-full 0] ; 最後に全ページの取得を始めた時刻
       (if-let [c (ca/<! wc)]
         (condp = (:cmd c)
           :fetch (let [page (:page c)
-                       [report cats]
+                       start (= 1 page) ; サイクルの開始
+                       now (net/now)
+                       [ncycle incr last-full] (if start
+                                                 (let [ncycle (inc ncycle)
+                                                       incr (not (full-cycle? ncycle now last-full opts))]
+                                                   (when-not incr ; 全ページ取得時に最近見ていない番組を忘れる
+                                                     (let [horizon (- ncycle (if incremental full-cycle 1))]
+                                                       (swap! known #(reduce-kv (fn [m id [_ seen :as v]]
+                                                                                  (if (< seen horizon) m (assoc m id v)))
+                                                                                {} %))))
+                                                   [ncycle incr (if incr last-full now)])
+                                                 [ncycle incr last-full])
+                       ctx {:limiter limiter :max-pages pages :known known :incr incr :ncycle ncycle :official official}
+                       [report cats nnew]
                        (try
-                         (let [{:keys [page result cats npgms cmd-db cmd-ui]}
-                               (condp = page
-                                 0 (fetch)
-                                 1 (fetch page nil)
-                                 (fetch page curr-cats))]
+                         ;; 取得はページの応答を待つので、ディスパッチスレッドを塞がないよう別スレッドで行う
+                         (let [r (ca/<! (ca/thread
+                                         (try
+                                           (condp = page
+                                             0 (fetch ctx)
+                                             1 (fetch ctx page (if incr
+                                                                 (due-cats sched (net/now))
+                                                                 INITIAL-CATS))
+                                             (fetch ctx page curr-cats))
+                                           (catch Exception e e))))
+                               _ (when (instance? Exception r) (throw r))
+                               {:keys [page result cats npgms nnew cmd-db cmd-ui]} r]
                            (when cmd-db
                              (if (list? cmd-db)
                                (doseq [c cmd-db] (ca/>! oc-db c))
@@ -247,20 +502,37 @@
 
                            (when cmd-ui
                              (ca/>! oc-ui cmd-ui))
-                           [{:cmd :fetching-report :result result :page page :npgms npgms} cats])
+                           [{:cmd :fetching-report :result result :page page :npgms npgms} cats nnew])
                          (catch Exception e
                            (log/warnf "failed fetching RSS(%d) %s" page (.getMessage e))
-                           [{:cmd :fetching-report :result :error :page page :npgms 0} nil]))]
+                           [{:cmd :fetching-report :result :error :page page :npgms 0} nil nil]))]
                    (ca/>! cc report)
-                   (recur (or cats curr-cats)))
-          :wait  (let [{:keys [sec total]} c]
-                   (ca/>! oc-ui {:status :waiting-rss :sec sec :total total})
-                   (Thread/sleep 1000)
-                   (ca/>! cc {:cmd :waiting-report :sec sec :total total :result true})
-                   (recur nil))
+                   (recur (or cats curr-cats) ncycle incr sched
+                          (merge-with + (if start {} cycle-new) nnew) last-full))
+          :wait  (let [[sched sec total cats]
+                       (if-let [sec (:sec c)]
+                         [sched sec (:total c) (:cats c)]
+                         ;; サイクル終了。観測した新しい番組の出現頻度から次のサイクルまでの待機時間を決める。
+                         (let [now (net/now)
+                               sched (update-sched sched cycle-new now opts)
+                               sec (next-wait sched now opts)]
+                           (log/debugf "RSS schedule: %s" (pr-str sched))
+                           ;; 全カテゴリの全ページを取得し終えた場合は、そこに現れなかった番組が終了したことをDBに伝える。
+                           ;; 取得に抜けがあったサイクルでは行わず、DBの保持期間に任せる。
+                           (when (and (not incr) (pos? ncycle) (seq curr-cats)
+                                      (every? (fn [[acc total]] (<= total acc)) (vals curr-cats)))
+                             (let [ended (forget-unseen! known ncycle)]
+                               (when (seq ended)
+                                 (log/debugf "%d programs ended" (count ended))
+                                 (ca/>! oc-db {:cmd :end-pgms :ids ended}))))
+                           [sched sec sec (keys (due-cats sched (+ now (* 1000 sec))))]))]
+                   (ca/>! oc-ui {:status :waiting-rss :sec sec :total total :cats cats})
+                   (ca/<! (net/timeout 1000))
+                   (ca/>! cc {:cmd :waiting-report :sec sec :total total :cats cats :result true})
+                   (recur nil ncycle incr sched cycle-new last-full))
           (do
             (log/warnf "Caught an unknown command: (%s)" (pr-str c))
-            (recur curr-cats)))
+            (recur curr-cats ncycle incr sched cycle-new last-full)))
         (log/infof "Closed RSS worker channel")))
 
     (ca/go-loop [mode false
@@ -272,7 +544,7 @@
                  (do
                    (log/info "Stop RSS")
                    (recur false last-official-fetched))
-                 (let [now (System/currentTimeMillis)
+                 (let [now (net/now)
                        page (if (> now (+ last-official-fetched FETCH-OFFICIAL-INTERVAL-MSEC)) 0 1)]
                    (log/info "Start RSS")
                    (ca/>! oc-ui {:status :started-rss})
@@ -287,11 +559,11 @@
               (condp = result
                 :success (if (and (zero? npgms) (pos? page))
                            (do
-                             (ca/>! wc {:cmd :wait :sec WAITING-INTERVAL-SEC :total WAITING-INTERVAL-SEC})
+                             (ca/>! wc {:cmd :wait})
                              (recur mode last-official-fetched))
                            (do
                              (ca/>! wc {:cmd :fetch :page (inc page)})
-                             (recur mode (if (zero? page) (System/currentTimeMillis) last-official-fetched))))
+                             (recur mode (if (zero? page) (net/now) last-official-fetched))))
                 :error   (do ; 停止
                            (log/infof "STOP RSS (%d) caused by fetching error" page)
                            (ca/>! oc-ui {:status :stopped-rss :reason "stopped by network error"})
@@ -301,15 +573,15 @@
                 (recur mode last-official-fetched))))
 
           :waiting-report
-          (let [{:keys [sec total result]} c]
+          (let [{:keys [sec total cats result]} c]
             (if mode
               (if (= 1 sec)
-                (let [page (if (> (System/currentTimeMillis) (+ last-official-fetched FETCH-OFFICIAL-INTERVAL-MSEC))
+                (let [page (if (> (net/now) (+ last-official-fetched FETCH-OFFICIAL-INTERVAL-MSEC))
                              0 1)]
                   (ca/>! wc {:cmd :fetch :page page})
                   (recur mode last-official-fetched))
                 (do
-                  (ca/>! wc {:cmd :wait :sec (dec sec) :total total})
+                  (ca/>! wc {:cmd :wait :sec (dec sec) :total total :cats cats})
                   (recur mode last-official-fetched)))
               (do
                 (ca/>! oc-ui {:status :stopped-rss})
@@ -64,7 +64,7 @@
             id (-> link last-path-uri-str s/nstr)
             title (-> xml (html/select [(html/attr= :property "og:title")]) first :attrs :content s/nstr)
             description (-> xml (html/select [(html/attr= :property "og:description")]) first :attrs :content s/del-dup s/nstr)
-            thumbnail (-> xml (html/select [(html/attr= :property "og:image")]) first :attrs :content s/nstr)
+            thumbnail (-> xml (html/select [(html/attr= :property "og:image")]) first :attrs :content s/pooled)
             type (let [last-script (-> xml (html/select [:div.container :script]) last :content first)
                        type-str (->> last-script (re-find #"(?i)provider_type: \"(.*)\"") second)]
                    (-> type-str cs/lower-case keyword))
@@ -77,22 +77,22 @@
             member_only (if (empty? (html/select xml [:span.community-only])) 0 1)
             category (->> (html/select xml [:div#livetags :nobr :a.nicopedia html/text-node])
                           (cs/join ",")
-                          s/nstr)
+                          s/pooled)
             comm_id (condp = type
-                      :community (-> xml (html/select [:div.com :div.shosai :a]) second :attrs :href last-path-uri-str s/nstr)
-                      :channel (-> xml (html/select [:div.chan :div.shosai :a]) first :attrs :href last-path-uri-str s/nstr)
+                      :community (-> xml (html/select [:div.com :div.shosai :a]) second :attrs :href last-path-uri-str s/pooled)
+                      :channel (-> xml (html/select [:div.chan :div.shosai :a]) first :attrs :href last-path-uri-str s/pooled)
                       :official nil)
             comm_name (condp = type
-                        :community (-> xml (html/select [:div.com (html/attr= :itemprop "name" ) :> html/text-node]) first (s/unescape :html) s/nstr)
-                        :channel (-> xml (html/select [:div.chan :div.shosai :a :> html/text-node]) first (s/unescape :html) s/nstr)
+                        :community (-> xml (html/select [:div.com (html/attr= :itemprop "name" ) :> html/text-node]) first (s/unescape :html) s/pooled)
+                        :channel (-> xml (html/select [:div.chan :div.shosai :a :> html/text-node]) first (s/unescape :html) s/pooled)
                         :official nil)
             owner_name (condp = type
                          :community (-> xml (html/select [:div.com :strong.nicopedia_nushi (html/attr= :itemprop "member") :> html/text-node])
-                                        first (s/unescape :html) s/nstr)
+                                        first (s/unescape :html) s/pooled)
                          :channel (-> xml (html/select [:div.chan :div.shosai (html/attr= :itemprop "name") :> html/text-node])
-                                      first (s/unescape :html) s/nstr)
+                                      first (s/unescape :html) s/pooled)
                          :official nil)
-            now (System/currentTimeMillis)]
+            now (net/now)]
         (if (and (not-every? cs/blank? [id title link thumbnail]) description open_time start_time)
           (pgm/->Pgm id title open_time start_time description category link thumbnail owner_name
                      member_only ({:community 0 :channel 1 :official 2} type) comm_name comm_id now now)
@@ -124,7 +124,7 @@
 (def ^{:private true} LIMIT-ELAPSED 1200000) ;; APIによる番組ID取得からこの秒以上経過したら情報取得を諦める。
 
 (defn scrape-pgm [pid cid received]
-  (let [now (System/currentTimeMillis)]
+  (let [now (net/now)]
     ;; 繁忙期は番組ページ閲覧すら重い。番組ID受信から LIMIT-ELAPSED 秒経過していたら諦める。
     (if (> LIMIT-ELAPSED (- now received))
       (if-let [pgm (create-pgm-from-scrapedinfo pid cid)]
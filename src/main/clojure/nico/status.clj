@@ -1,16 +1,18 @@
 ;; -*- coding: utf-8-unix -*-
 (ns nico.status
   (:require [clojure.core.async :as ca]
-            [clojure.data :as cd]
             [clojure.java.browse :as browse]
+            [clojure.string :as cs]
             [clojure.tools.logging :as log]
             [desktop-alert :as da]
             [input-parser.tokenizer :as tok]
+            [nico.image :as img]
             [seesaw.core :as sc]
             [seesaw.border :as border])
   (:import [java.net URI]
            [javax.swing JLabel JProgressBar]
            [com.github.sgr.slide LinkHandler LinkHandlers]
+           [nico.image ThumbnailStore$Handle]
            [nico.ui AlertPanel PgmList PgmPanel]))
 
 (defn boot
@@ -43,10 +45,27 @@
               (if (and (pos? n) (< n (count s)))
                 (-> (str (.substring s 0 n) LINE-SEPARATOR "＜省略しています＞") String.)
                 s))
+            (load-thumbnail [^PgmPanel p pgm]
+              ;; 取得するまではPgmPanelのプレースホルダーが表示される。
+              ;; キャッシュになければ、パネルが描画された(画面に表示された)時点で優先して取得する
+              (let [url (:thumbnail pgm)]
+                (if-let [h (img/cached url)]
+                  (.setThumbnail p h)
+                  (.setThumbnailRequest
+                   p (fn []
+                       (img/image-async url
+                                        (fn [^ThumbnailStore$Handle h]
+                                          (when h
+                                            (sc/invoke-later
+                                             (if (and (.getId p) (nil? (.getThumbnail p)))
+                                               (.setThumbnail p h)
+                                               (.release h)))))
+                                        :visible))))))
             (pgm-panel [pgm & {:keys [width height border]}]
               (let [^PgmPanel p (PgmPanel/create (:id pgm) (:title pgm) (:link pgm) (trim (:description pgm) 64)
                                                  (:owner_name pgm) (:comm_name pgm) (:comm_id pgm) (:type pgm)
-                                                 (:member_only pgm) (:start_time pgm) (:thumbnail_image pgm))]
+                                                 (:member_only pgm) (:start_time pgm) nil)]
+                (load-thumbnail p pgm)
                 (.setLinkHandlers p link-handlers)
                 (when width (.setWidth p width))
                 (when height (.setHeight p height))
@@ -60,8 +79,8 @@
                 (.setDescription p (-> pgm :description (trim 64))))
               (when (< (.getStartTime p) (:start_time pgm))
                 (.setStartTime p (:start_time pgm)))
-              (when (and (nil? (.getThumbnail p)) (:thumbnail_image pgm))
-                (.setThumbnail p (:thumbnail_image pgm)))
+              (when (nil? (.getThumbnail p))
+                (load-thumbnail p pgm))
               (doto p
                 (.invalidate)
                 (.setRepaintImmediately true)))
@@ -69,22 +88,25 @@
               (->> (.getComponents wpanel)
                    (filter #(= id (-> % sc/id-of name)))
                    first))
-            (do-alert [title thumbs]
-              (when (pos? (count thumbs))
-                (let [cnt (count thumbs)
-                      msg (format "%d %s added to \"%s\"" cnt (if (= 1 cnt) "program is" "programs are") title)
-                      apanel (do (AlertPanel/create msg thumbs))]
-                  (da/alert apanel 6000))))
-            (update-pgms [id pgms title alert] ; 更新後のリスト内の番組数を返す。
+            (do-alert [title urls]
+              (when (pos? (count urls))
+                (let [cnt (count urls)
+                      msg (format "%d %s added to \"%s\"" cnt (if (= 1 cnt) "program is" "programs are") title)]
+                  ;; サムネイルが揃ってから通知する。取得はイメージ取得スレッドで行うのでこのループは待たない
+                  ;; サムネイルのハンドルはAlertPanelが閉じる際に手放す
+                  (img/images-async urls (fn [thumbs] (da/alert (AlertPanel/create msg thumbs) 6000)) :visible))))
+            (update-pgms [id {:keys [added removed updated]} title alert] ; 更新後のリスト内の番組数を返す。
               (let [^PgmList pgm-lst (sc/select (cpanel id) [:#lst])
-                    pmap (reduce #(assoc %1 (:id %2) %2) {} pgms)
                     pnls (.getComponents pgm-lst)
-                    [rpids npids upids] (cd/diff (set (map #(.getId %) pnls)) (set (map :id pgms)))
-                    npnls (->> pgms (filter #(contains? npids (:id %))) (map pgm-panel)) ; 追加パネル
-                    rpnls (->> pnls (filter #(contains? rpids (.getId %))))  ; 削除パネル
-                    upnls (->> pnls (filter #(contains? upids (.getId %))))] ; 更新するかもパネル
+                    pids (set (map #(.getId %) pnls))
+                    [npgms epgms] (let [m (group-by #(contains? pids (:id %)) added)]
+                                    [(get m false) (get m true)])
+                    pmap (reduce #(assoc %1 (:id %2) %2) {} (concat epgms updated))
+                    npnls (map pgm-panel npgms) ; 追加パネル
+                    rpnls (->> pnls (filter #(contains? removed (.getId %))))  ; 削除パネル
+                    upnls (->> pnls (filter #(contains? pmap (.getId %))))] ; 更新するかもパネル
                 (when alert
-                  (do-alert title (->> pgms (filter #(contains? npids (:id %))) (map :thumbnail_image))))
+                  (do-alert title (map :thumbnail npgms)))
                 (sc/invoke-now
                  (doseq [rpnl rpnls] (.remove pgm-lst rpnl) (.release rpnl))
                  (doseq [upnl upnls] (update-panel upnl (get pmap (.getId upnl))))
@@ -133,10 +155,10 @@
                                  (swap! n-titles dissoc id)
                                  (swap! n-npgms  dissoc id)
                                  (swap! n-alerts dissoc id))
-              :searched (let [new-npgms (reduce (fn [m [id pgms]]
+              :searched (let [new-npgms (reduce (fn [m [id d]]
                                                   (let [title (get titles id)
                                                         alert (get alerts id)]
-                                                    (assoc m id (update-pgms id pgms title alert))))
+                                                    (assoc m id (update-pgms id d title alert))))
                                                 {} (:results cmd))]
                           (swap! n-npgms merge new-npgms))
 
@@ -150,7 +172,8 @@
               :fetching-rss (let [{:keys [page acc total]} cmd]
                               (sc/invoke-later
                                (when-not (= "fetching" (.getText rss-status))
-                                 (.setText rss-status "fetching"))
+                                 (.setText rss-status "fetching")
+                                 (.setToolTipText rss-progress nil))
                                (.setIndeterminate rss-progress (if total false true))
                                (when (and total (not= total (.getMaximum rss-progress)))
                                  (.setMaximum rss-progress total))
@@ -175,16 +198,20 @@
                                     (sc/config! add-ch-btn :enabled? (pos? nresults))
                                     (sc/config! search-btn :enabled? true))
                                    (doseq [rpnl rpnls] (.release rpnl)))
-              :waiting-rss (let [{:keys [sec total]} cmd]
+              :waiting-rss (let [{:keys [sec total cats]} cmd]
                              (sc/invoke-later
                               (when-not (= "waiting" (.getText rss-status))
-                                (.setText rss-status "waiting"))
+                                (.setText rss-status "waiting")
+                                (.setToolTipText rss-progress
+                                                 (when (seq cats)
+                                                   (str "next: " (cs/join ", " (map name cats))))))
                               (when (and total (not= total (.getMaximum rss-progress)))
                                 (.setMaximum rss-progress total))
                               (.setValue rss-progress sec)
                               (.setString rss-progress (str sec " sec rest"))))
               :started-rss (sc/invoke-later
                             (sc/config! rss-status :text "running")
+                            (.setToolTipText rss-progress nil)
                             (sc/config! rss-progress :value 0 :max 100)
                             (.setString rss-progress EMPTY-PROGRESS-STR)
                             (sc/config! rss-btn :icon "stop.png"))
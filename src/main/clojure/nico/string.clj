@@ -3,7 +3,12 @@
   (:require [clojure.string :as s])
             ;;[clojure.tools.logging :as log])
   (:import [java.io ByteArrayInputStream InputStream InputStreamReader]
-           [org.apache.commons.lang3 StringEscapeUtils]))
+           [java.text Normalizer Normalizer$Form]
+           [java.util Locale]
+           [java.util.concurrent ConcurrentHashMap]
+           [java.util.concurrent.atomic AtomicLong]
+           [org.apache.commons.lang3 StringEscapeUtils]
+           [org.apache.commons.lang3.text.translate EntityArrays]))
 
 (defn nstr
   "新しいStringを返す。nilの場合は長さ0の文字列を返す。
@@ -12,6 +17,39 @@
   [^String str]
   (if (nil? str) "" (String. str)))
 
+(let [POOL-LIMIT 32768
+      pool (ConcurrentHashMap.)] ; key: 文字列, val: [プール内の文字列 最終使用時刻]
+  (defn pooled
+    "strと等しい文字列をプールから返す。プールになければnstrしたものを登録して返す。
+     カテゴリやコミュニティ名のように取得サイクルごとに同じ値が繰り返し現れるフィールドに用いる。
+     プールが上限に達している場合は登録せずにnstrしたものを返す。"
+    [^String str]
+    (if (nil? str)
+      ""
+      (let [now (System/currentTimeMillis)]
+        (if-let [[ps ^AtomicLong used] (.get pool str)]
+          (do (.lazySet used now) ps)
+          (let [copy (nstr str)]
+            (if (< (.size pool) POOL-LIMIT)
+              (if-let [[ps ^AtomicLong used] (.putIfAbsent pool copy [copy (AtomicLong. now)])]
+                (do (.lazySet used now) ps)
+                copy)
+              copy))))))
+
+  (defn sweep-pool!
+    "beforeより前(ミリ秒)から使われていない文字列をプールから取り除き、その数を返す。"
+    [before]
+    (let [it (.iterator (.values pool))]
+      (loop [n 0]
+        (if (.hasNext it)
+          (let [[_ ^AtomicLong used] (.next it)]
+            (if (< (.get used) before)
+              (do (.remove it) (recur (inc n)))
+              (recur n)))
+          n))))
+
+  (defn pool-size [] (.size pool)))
+
 (defn del-dup
   "連続した空白や改行を一つにまとめる"
   [^String str]
@@ -31,6 +69,123 @@
       str)
     ""))
 
+;; StringEscapeUtils/unescapeHtml4が展開する名前つき文字参照("&amp;"など)
+(let [entities (reduce (fn [m [k v]] (assoc m k (.codePointAt ^String v 0))) {}
+                       (concat (EntityArrays/BASIC_UNESCAPE)
+                               (EntityArrays/ISO8859_1_UNESCAPE)
+                               (EntityArrays/HTML40_EXTENDED_UNESCAPE)))
+      max-len (reduce max (map count (keys entities)))]
+  (defn- entity-at
+    "s[i]から始まる文字参照を展開し、(文字 + 次の位置 * 0x200000)を返す。文字参照でなければ-1を返す。
+     unescapeHtml4と同じく末尾の;を必須とする。"
+    ^long [^String s ^long i]
+    (let [n (.length s)]
+      (if (and (< (inc i) n) (= \# (.charAt s (inc i))))
+        (let [hex? (and (< (+ i 2) n) (let [c (.charAt s (+ i 2))] (or (= c \x) (= c \X))))
+              start (+ i (if hex? 3 2))]
+          (loop [j start v 0]
+            (let [c (if (< j n) (int (.charAt s j)) -1)
+                  d (cond (<= 0x30 c 0x39) (- c 0x30)
+                          (and hex? (<= 0x61 c 0x66)) (- c 0x57)
+                          (and hex? (<= 0x41 c 0x46)) (- c 0x37)
+                          :else -1)]
+              (cond
+                (<= 0 d) (recur (inc j) (min (+ (* v (if hex? 16 10)) d) 0x110000))
+                (and (= c 0x3B) (< start j) (< v 0x110000)) (+ v (* (inc j) 0x200000))
+                :else -1))))
+        (let [end (.indexOf s ";" (int i))]
+          (if-let [c (and (< i end) (< (- end i) max-len) (entities (.substring s i (inc end))))]
+            (+ (long c) (* (inc end) 0x200000))
+            -1))))))
+
+(defn- char-at
+  "文字参照を展開しつつs[i]の文字を読み、(文字 + 次の位置 * 0x200000)を返す。"
+  ^long [^String s ^long i]
+  (let [c (.codePointAt s (int i))
+        e (if (= c 0x26) (entity-at s i) -1)]
+    (if (neg? e)
+      (+ c (* (+ i (Character/charCount c)) 0x200000))
+      e)))
+
+(defn- ch ^long [^long d] (bit-and d 0x1FFFFF))
+(defn- nx ^long [^long d] (bit-shift-right d 21))
+
+(defn html->text
+  "HTML断片の文字参照を展開してタグとコメントを取り除き、連続した空白と全角空白をそれぞれ一つにまとめる。
+   (-> s (unescape :html) HtmlCleanerでgetText del-dup)と同じ結果を一度の走査で返す。
+   ただし次の2点はHtmlCleanerに合わせず、意図して異なる結果を返す。
+   ・引用符で囲まれた属性値の中の>ではタグを終えない。<a href=\"x>y\">l は l となる(HtmlCleanerでは y\">l)。
+   ・<?や<!で始まる宣言は>までを取り除き、続くテキストは残す。a<?php ?>b は ab となる
+     (HtmlCleanerでは次のタグまでのテキストも捨てられ a)。
+   状態を持たないので複数のスレッドから同時に呼び出してよい。"
+  [^String s]
+  (if (nil? s)
+    ""
+    (let [n (.length s)
+          sb (StringBuilder. n)
+          append (fn [^long c]
+                   (let [l (.length sb)
+                         prev (if (pos? l) (int (.charAt sb (dec l))) -1)]
+                     (case (int c)
+                       (0x9 0xA 0xB 0xC 0xD 0x20) (when-not (= prev 0x20) (.append sb \space)) ; \s
+                       0x3000 (when-not (= prev 0x3000) (.append sb \u3000))
+                       (.appendCodePoint sb (int c)))))
+          name-start? (fn [^long i] (and (< i n) (Character/isUnicodeIdentifierStart (int (ch (char-at s i))))))]
+      ;; state 0:テキスト 1:タグ 2:タグ内の=の直後 3:タグ内の引用符で囲まれた値 4:コメント 5:<!や<?で始まる宣言
+      ;; qはstate 3では閉じる引用符、state 4では直前に続いた-の数
+      (loop [i 0 state 0 q 0 blank true]
+        (if (<= n i)
+          (if blank "" (.toString sb))
+          (let [d (char-at s i) c (ch d) i2 (nx d)
+                blank (and blank (Character/isWhitespace (int c)))]
+            (case (int state)
+              0 (if (= c 0x3C) ; <
+                  (if (< i2 n)
+                    (let [d2 (char-at s i2) c2 (ch d2) i3 (nx d2)]
+                      (cond
+                        (name-start? i2) (recur i2 1 0 false)
+                        (and (= c2 0x2F) (name-start? i3)) (recur i3 1 0 false) ; </
+                        (= c2 0x21) (if (and (< i3 n) (= 0x2D (ch (char-at s i3))) ; <!--
+                                             (let [i4 (nx (char-at s i3))]
+                                               (and (< i4 n) (= 0x2D (ch (char-at s i4))))))
+                                      (recur (nx (char-at s (nx (char-at s i3)))) 4 0 false)
+                                      (recur i3 5 0 false))
+                        (= c2 0x3F) (recur i3 5 0 false) ; <?
+                        :else (do (append c) (recur i2 0 0 false))))
+                    (do (append c) (recur i2 0 0 false)))
+                  (do (append c) (recur i2 0 0 blank)))
+              1 (case (int c)
+                  0x3E (recur i2 0 0 blank)
+                  0x3D (recur i2 2 0 blank)
+                  (recur i2 1 0 blank))
+              2 (case (int c)
+                  (0x22 0x27) (recur i2 3 c blank)
+                  0x3E (recur i2 0 0 blank)
+                  (0x9 0xA 0xC 0xD 0x20) (recur i2 2 0 blank)
+                  (recur i2 1 0 blank))
+              3 (if (= c q) (recur i2 1 0 blank) (recur i2 3 q blank))
+              4 (cond
+                  (= c 0x2D) (recur i2 4 (min (inc q) 2) blank)
+                  (and (= c 0x3E) (= q 2)) (recur i2 0 0 blank)
+                  :else (recur i2 4 0 blank))
+              5 (if (= c 0x3E) (recur i2 0 0 blank) (recur i2 5 0 blank)))))))))
+
+(defn normalize
+  "検索用に文字列を正規化する。NFKCで全角英数字や半角カナを揃え、大文字小文字を区別しないよう小文字にする。
+   kanaが真ならカタカナをひらがなにする。nilの場合はnilを返す。"
+  ([^String str] (normalize str false))
+  ([^String str kana]
+     (when str
+       (let [^String n (-> str (Normalizer/normalize Normalizer$Form/NFKC) (.toUpperCase Locale/ROOT) (.toLowerCase Locale/ROOT))]
+         (if kana
+           (let [sb (StringBuilder. n)]
+             (dotimes [i (.length sb)]
+               (let [c (int (.charAt sb i))]
+                 (when (or (<= 0x30A1 c 0x30F6) (= c 0x30FD) (= c 0x30FE))
+                   (.setCharAt sb i (char (- c 0x60))))))
+             (.toString sb))
+           n)))))
+
 (defn utf8stream
   "translate from String to Stream."
   [^String s]
@@ -0,0 +1,153 @@
+// -*- coding: utf-8-unix -*-
+package nico.db;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * 複数の文字列が含まれるかを一度の走査で調べるAho-Corasickオートマトン。
+ * SQLiteのLIKEや全文検索テーブルと同じく、ASCIIの英字のみ大文字小文字を区別しない。
+ */
+public class AhoCorasick {
+    private final char[][] _keys;	// ノードごとの遷移文字(昇順)
+    private final int[][] _next;	// ノードごとの遷移先
+    private final int[] _fail;		// 遷移できない場合の戻り先
+    private final int[][] _out;		// ノードに達したら見つかったことになるパターンの番号
+    private final int _size;		// パターン数
+
+    private static final int[] NONE = new int[0];
+
+    public AhoCorasick(String[] patterns) {
+	_size = patterns.length;
+	List<TreeMap<Character, Integer>> trie = new ArrayList<TreeMap<Character, Integer>>();
+	List<List<Integer>> outs = new ArrayList<List<Integer>>();
+	trie.add(new TreeMap<Character, Integer>());
+	outs.add(new ArrayList<Integer>());
+	for (int p = 0; p < patterns.length; p++) {
+	    String pattern = patterns[p];
+	    int s = 0;
+	    for (int i = 0; i < pattern.length(); i++) {
+		Character c = Character.valueOf(fold(pattern.charAt(i)));
+		Integer n = trie.get(s).get(c);
+		if (n == null) {
+		    n = Integer.valueOf(trie.size());
+		    trie.get(s).put(c, n);
+		    trie.add(new TreeMap<Character, Integer>());
+		    outs.add(new ArrayList<Integer>());
+		}
+		s = n.intValue();
+	    }
+	    outs.get(s).add(Integer.valueOf(p));
+	}
+
+	int nodes = trie.size();
+	_keys = new char[nodes][];
+	_next = new int[nodes][];
+	_fail = new int[nodes];
+	_out = new int[nodes][];
+	for (int s = 0; s < nodes; s++) {
+	    TreeMap<Character, Integer> m = trie.get(s);
+	    _keys[s] = new char[m.size()];
+	    _next[s] = new int[m.size()];
+	    int i = 0;
+	    for (Map.Entry<Character, Integer> e : m.entrySet()) {
+		_keys[s][i] = e.getKey().charValue();
+		_next[s][i] = e.getValue().intValue();
+		i++;
+	    }
+	}
+
+	// 幅優先で戻り先を求め、戻り先で見つかるパターンを自身の出力に含める
+	int[] queue = new int[nodes];
+	int head = 0, tail = 0;
+	_out[0] = toArray(outs.get(0), NONE);
+	for (int n : _next[0]) {
+	    _fail[n] = 0;
+	    queue[tail++] = n;
+	}
+	while (head < tail) {
+	    int s = queue[head++];
+	    int[] inherited = _out[_fail[s]];
+	    _out[s] = toArray(outs.get(s), inherited);
+	    for (int i = 0; i < _keys[s].length; i++) {
+		char c = _keys[s][i];
+		int n = _next[s][i];
+		int f = _fail[s];
+		int g;
+		while ((g = next(f, c)) < 0 && f != 0) {
+		    f = _fail[f];
+		}
+		_fail[n] = (g >= 0) ? g : 0;
+		queue[tail++] = n;
+	    }
+	}
+    }
+
+    private static int[] toArray(List<Integer> own, int[] inherited) {
+	if (own.isEmpty()) {
+	    return inherited;
+	}
+	int[] a = new int[own.size() + inherited.length];
+	int i = 0;
+	for (Integer p : own) {
+	    a[i++] = p.intValue();
+	}
+	System.arraycopy(inherited, 0, a, i, inherited.length);
+	return a;
+    }
+
+    private static char fold(char c) {
+	return (c >= 'A' && c <= 'Z') ? (char)(c + ('a' - 'A')) : c;
+    }
+
+    private int next(int s, char c) {
+	char[] keys = _keys[s];
+	int lo = 0, hi = keys.length - 1;
+	while (lo <= hi) {
+	    int mid = (lo + hi) >>> 1;
+	    char k = keys[mid];
+	    if (k < c) {
+		lo = mid + 1;
+	    } else if (k > c) {
+		hi = mid - 1;
+	    } else {
+		return _next[s][mid];
+	    }
+	}
+	return -1;
+    }
+
+    /** パターン数を返す。 */
+    public int size() {
+	return _size;
+    }
+
+    /**
+     * textに含まれるパターンの番号をセットしたBitSetを返す。
+     * textがnullなら何も含まれないものとする。
+     */
+    public BitSet match(String text) {
+	BitSet found = new BitSet(_size);
+	if (text == null) {
+	    return found;
+	}
+	for (int p : _out[0]) {
+	    found.set(p);
+	}
+	int s = 0;
+	for (int i = 0; i < text.length(); i++) {
+	    char c = fold(text.charAt(i));
+	    int n;
+	    while ((n = next(s, c)) < 0 && s != 0) {
+		s = _fail[s];
+	    }
+	    s = (n >= 0) ? n : 0;
+	    for (int p : _out[s]) {
+		found.set(p);
+	    }
+	}
+	return found;
+    }
+}
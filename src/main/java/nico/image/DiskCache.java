@@ -0,0 +1,281 @@
+// -*- coding: utf-8-unix -*-
+package nico.image;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * 縮小済みのサムネイルをURLごとにファイルに保存するディスクキャッシュ。
+ * URLのハッシュ値から保存時刻とサイズを引く索引はメモリマップしたファイル上のオープンアドレス法のハッシュ表で、
+ * 起動時に読み込む必要がない。
+ * 保存したデータの総バイト数がmaxBytesを超えるか索引が埋まってきたら、保存時刻の古いものから削除する。
+ * 保存からttlミリ秒を過ぎたものは見つからなかったものとして扱う。
+ */
+public class DiskCache {
+    private static final Logger log = Logger.getLogger(DiskCache.class.getCanonicalName());
+    private static final String INDEX_NAME = "index";
+    private static final int MAGIC = 0x4e494331; // "NIC1"
+    private static final int HEADER_SIZE = 16;	 // MAGIC, スロット数, 予備
+    private static final int SLOT_SIZE = 24;	 // キー(long), 保存時刻(long), サイズ(int), 予備(int)
+    private static final long EMPTY = 0L;
+    private static final double MAX_LOAD = 0.75;
+
+    private final File _dir;
+    private final int _slots;
+    private final long _maxBytes;
+    private final long _ttl;
+    private RandomAccessFile _file;
+    private MappedByteBuffer _index;
+    private int _count = 0;
+    private long _bytes = 0;
+    private long _hits = 0;
+    private long _misses = 0;
+    private long _evictions = 0;
+
+    public DiskCache(File dir, int slots, long maxBytes, long ttl) throws IOException {
+	_dir = dir;
+	_slots = slots;
+	_maxBytes = maxBytes;
+	_ttl = ttl;
+	if (!dir.isDirectory() && !dir.mkdirs()) {
+	    throw new IOException("couldn't create " + dir);
+	}
+	File f = new File(dir, INDEX_NAME);
+	long size = HEADER_SIZE + (long)SLOT_SIZE * slots;
+	_file = new RandomAccessFile(f, "rw");
+	boolean valid = _file.length() == size && _file.readInt() == MAGIC && _file.readInt() == slots;
+	if (!valid) {
+	    // 形式の異なる索引は作り直す。索引から辿れなくなったデータも削除する
+	    _file.setLength(0);
+	    _file.setLength(size);
+	    for (File d : dir.listFiles()) {
+		if (!d.getName().equals(INDEX_NAME)) {
+		    d.delete();
+		}
+	    }
+	}
+	_index = _file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+	if (valid) {
+	    for (int i = 0; i < slots; i++) {
+		long k = key(i);
+		if (k != EMPTY) {
+		    _count++;
+		    _bytes += size(i);
+		}
+	    }
+	} else {
+	    _index.putInt(0, MAGIC);
+	    _index.putInt(4, slots);
+	}
+    }
+
+    private int offset(int i) {
+	return HEADER_SIZE + SLOT_SIZE * i;
+    }
+
+    private long key(int i) {
+	return _index.getLong(offset(i));
+    }
+
+    private long storedAt(int i) {
+	return _index.getLong(offset(i) + 8);
+    }
+
+    private int size(int i) {
+	return _index.getInt(offset(i) + 16);
+    }
+
+    private void setSlot(int i, long key, long storedAt, int size) {
+	int o = offset(i);
+	_index.putLong(o, key);
+	_index.putLong(o + 8, storedAt);
+	_index.putInt(o + 16, size);
+    }
+
+    /** URLのFNV-1aハッシュ値。空きを表す値は避ける。 */
+    private static long hash(String url) {
+	long h = 0xcbf29ce484222325L;
+	for (int i = 0; i < url.length(); i++) {
+	    h ^= url.charAt(i);
+	    h *= 0x100000001b3L;
+	}
+	return h == EMPTY ? 1L : h;
+    }
+
+    /** keyを最初に探すスロット。 */
+    private int home(long key) {
+	return (int)((key >>> 1) % _slots);
+    }
+
+    /** keyのスロットを返す。なければ-1を返す。 */
+    private int find(long key) {
+	int i = home(key);
+	for (int n = 0; n < _slots; n++, i = (i + 1) % _slots) {
+	    long k = key(i);
+	    if (k == key) {
+		return i;
+	    } else if (k == EMPTY) {
+		return -1;
+	    }
+	}
+	return -1;
+    }
+
+    private File dataFile(long key) {
+	return new File(_dir, String.format("%016x", key));
+    }
+
+    /**
+     * スロットiを削除する。削除済みの印を残さないよう、後続のスロットを探し始めの位置を越えない範囲で詰める。
+     */
+    private void remove(int i) {
+	dataFile(key(i)).delete();
+	_count--;
+	_bytes -= size(i);
+	setSlot(i, EMPTY, 0, 0);
+	for (int j = (i + 1) % _slots; key(j) != EMPTY; j = (j + 1) % _slots) {
+	    int h = home(key(j));
+	    // hがi(空き)からj(含む)の間にある場合は動かせない
+	    boolean stay = (i <= j) ? (i < h && h <= j) : (i < h || h <= j);
+	    if (!stay) {
+		setSlot(i, key(j), storedAt(j), size(j));
+		setSlot(j, EMPTY, 0, 0);
+		i = j;
+	    }
+	}
+    }
+
+    /** 保存時刻の最も古いものを削除する。 */
+    private void evictOldest() {
+	int oldest = -1;
+	for (int i = 0; i < _slots; i++) {
+	    long k = key(i);
+	    if (k != EMPTY && (oldest < 0 || storedAt(i) < storedAt(oldest))) {
+		oldest = i;
+	    }
+	}
+	if (oldest >= 0) {
+	    remove(oldest);
+	    _evictions++;
+	}
+    }
+
+    /**
+     * urlについて保存したデータを返す。ない場合や保存からttlミリ秒を過ぎている場合はnullを返す。
+     */
+    public synchronized byte[] get(String url) {
+	if (_index == null) {
+	    return null;
+	}
+	long key = hash(url);
+	int i = find(key);
+	if (i >= 0 && System.currentTimeMillis() - storedAt(i) <= _ttl) {
+	    DataInputStream is = null;
+	    try {
+		is = new DataInputStream(new FileInputStream(dataFile(key)));
+		// ハッシュ値が衝突した別のURLでないことを確かめる
+		if (is.readUTF().equals(url)) {
+		    byte[] data = new byte[is.readInt()];
+		    is.readFully(data);
+		    _hits++;
+		    return data;
+		}
+	    } catch (IOException e) {
+		log.log(Level.FINE, "failed reading cached data: " + url, e);
+		remove(i);
+	    } finally {
+		if (is != null) {
+		    try { is.close(); } catch (IOException e) {}
+		}
+	    }
+	} else if (i >= 0) {
+	    remove(i);
+	}
+	_misses++;
+	return null;
+    }
+
+    /**
+     * urlについてデータを保存する。
+     */
+    public synchronized void put(String url, byte[] data) {
+	if (_index == null) {
+	    return;
+	}
+	long key = hash(url);
+	int i = find(key);
+	if (i >= 0) {
+	    remove(i);
+	}
+	ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length + url.length() + 8);
+	DataOutputStream os = new DataOutputStream(bos);
+	FileOutputStream fos = null;
+	try {
+	    os.writeUTF(url);
+	    os.writeInt(data.length);
+	    os.write(data);
+	    os.flush();
+	    int size = bos.size();
+	    while (_count > 0 && (_count + 1 > _slots * MAX_LOAD || _bytes + size > _maxBytes)) {
+		evictOldest();
+	    }
+	    fos = new FileOutputStream(dataFile(key));
+	    bos.writeTo(fos);
+	    int s = home(key);
+	    while (key(s) != EMPTY) {
+		s = (s + 1) % _slots;
+	    }
+	    setSlot(s, key, System.currentTimeMillis(), size);
+	    _count++;
+	    _bytes += size;
+	} catch (IOException e) {
+	    log.log(Level.WARNING, "failed caching data: " + url, e);
+	    dataFile(key).delete();
+	} finally {
+	    if (fos != null) {
+		try { fos.close(); } catch (IOException e) {}
+	    }
+	}
+    }
+
+    public synchronized long hits() {
+	return _hits;
+    }
+
+    public synchronized long misses() {
+	return _misses;
+    }
+
+    public synchronized long evictions() {
+	return _evictions;
+    }
+
+    /** 保存しているデータの総バイト数を返す。 */
+    public synchronized long bytes() {
+	return _bytes;
+    }
+
+    /** 保存しているデータの数を返す。 */
+    public synchronized int count() {
+	return _count;
+    }
+
+    /** 索引をファイルに書き出して閉じる。 */
+    public synchronized void close() throws IOException {
+	if (_index != null) {
+	    _index.force();
+	    _index = null;
+	    _file.close();
+	    _file = null;
+	}
+    }
+}
@@ -0,0 +1,317 @@
+// -*- coding: utf-8-unix -*-
+package nico.image;
+import java.awt.Component;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import javax.swing.Icon;
+
+/**
+ * 縮小済みのサムネイルをURLごとにヒープ外のバッファに保存するストア。
+ * バッファは幅width、高さheightのARGBの画素を詰めたスロットに区切られ、スロット数はmaxBytesから決まる。
+ * サムネイルはHandleを通して参照し、Handleが残っているスロットは追い出されない。
+ * 同じサムネイルを複数のパネルで表示する場合は、それぞれがacquireかretainで得たHandleを持ち、不要になったらreleaseする。
+ * 参照されていないスロットは、新しいサムネイルを保存する際に最後に使われたのが古いものから再利用される。
+ */
+public class ThumbnailStore {
+    private final int _width;
+    private final int _height;
+    private final int _slotSize;	// スロットあたりの画素数
+    private final int _slots;
+    private final IntBuffer _pixels;
+    private final String[] _urls;
+    private final int[] _widths;	// スロットに保存したイメージの幅
+    private final int[] _heights;	// スロットに保存したイメージの高さ
+    private final int[] _refs;		// スロットを参照しているHandleの数
+    private final int[] _free;		// 空きスロット
+    private int _nfree;
+    private final LinkedHashMap<String, Integer> _index = new LinkedHashMap<String, Integer>(16, 0.75f, true);
+    private final int[] _work;		// 保存時に画素を並べる作業領域
+    private final BufferedImage[] _views; // スロットの画素をそのまま参照するイメージ。描画時に作る
+    private long _hits = 0;
+    private long _misses = 0;
+    private long _evictions = 0;
+    private long _rejections = 0;
+
+    public ThumbnailStore(int width, int height, long maxBytes) {
+	_width = width;
+	_height = height;
+	_slotSize = width * height;
+	_slots = (int)Math.min(Integer.MAX_VALUE / (4 * _slotSize), maxBytes / (4L * _slotSize));
+	_pixels = ByteBuffer.allocateDirect(4 * _slotSize * _slots).order(ByteOrder.nativeOrder()).asIntBuffer();
+	_urls = new String[_slots];
+	_widths = new int[_slots];
+	_heights = new int[_slots];
+	_refs = new int[_slots];
+	_free = new int[_slots];
+	for (int i = 0; i < _slots; i++) {
+	    _free[i] = _slots - 1 - i;
+	}
+	_nfree = _slots;
+	_work = new int[_slotSize];
+	_views = new BufferedImage[_slots];
+    }
+
+    /**
+     * urlのサムネイルを参照するHandleを返す。ない場合はnullを返す。
+     */
+    public synchronized Handle acquire(String url) {
+	Integer slot = _index.get(url);
+	if (slot == null) {
+	    _misses++;
+	    return null;
+	}
+	_hits++;
+	_refs[slot]++;
+	return new Handle(slot);
+    }
+
+    /** urlのサムネイルがあるかを返す。最後に使われた順は変えない。 */
+    public synchronized boolean contains(String url) {
+	return _index.containsKey(url);
+    }
+
+    /**
+     * imgをurlのサムネイルとして保存し、参照するHandleを返す。
+     * 既にある場合は保存せずにそれを返す。全てのスロットが参照されていて保存できない場合はnullを返す。
+     * imgはスロットの大きさ以下でなければならない。
+     */
+    public synchronized Handle put(String url, BufferedImage img) {
+	int w = img.getWidth();
+	int h = img.getHeight();
+	if (w > _width || h > _height) {
+	    throw new IllegalArgumentException(String.format("too large image (%dx%d): %s", w, h, url));
+	}
+	Integer found = _index.get(url);
+	if (found != null) {
+	    _refs[found]++;
+	    return new Handle(found);
+	}
+	int slot = allocate();
+	if (slot < 0) {
+	    _rejections++;
+	    return null;
+	}
+	Arrays.fill(_work, 0);
+	img.getRGB(0, 0, w, h, _work, 0, _width);
+	_pixels.position(slot * _slotSize);
+	_pixels.put(_work);
+	_urls[slot] = url;
+	_widths[slot] = w;
+	_heights[slot] = h;
+	_refs[slot] = 1;
+	_index.put(url, slot);
+	return new Handle(slot);
+    }
+
+    /** 空きスロットを返す。なければ参照されていないスロットのうち最後に使われたのが最も古いものを空ける。 */
+    private int allocate() {
+	if (_nfree > 0) {
+	    return _free[--_nfree];
+	}
+	for (Iterator<Map.Entry<String, Integer>> it = _index.entrySet().iterator(); it.hasNext();) {
+	    int slot = it.next().getValue();
+	    if (_refs[slot] == 0) {
+		it.remove();
+		_urls[slot] = null;
+		_evictions++;
+		return slot;
+	    }
+	}
+	return -1;
+    }
+
+    private void release(int slot) {
+	_refs[slot]--;
+    }
+
+    /** スロットの画素をそのまま参照するイメージを返す。画素を写さないので、描画の際にストアをロックしなくてよい。 */
+    private BufferedImage view(int slot) {
+	if (_views[slot] == null) {
+	    ColorModel cm = ColorModel.getRGBdefault();
+	    DataBuffer db = new SlotBuffer(_pixels, slot * _slotSize, _slotSize);
+	    _views[slot] = new BufferedImage(cm, Raster.createWritableRaster(cm.createCompatibleSampleModel(_width, _height), db, null),
+					     false, null);
+	}
+	return _views[slot];
+    }
+
+    private static void paint(BufferedImage img, int w, int h, Graphics g, int x, int y, int width, int height) {
+	// 呼び出し元のGraphicsの設定を変えないよう、複製に描画する
+	Graphics g2 = g.create();
+	try {
+	    if ((w != width || h != height) && g2 instanceof Graphics2D) {
+		((Graphics2D)g2).setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+	    }
+	    g2.drawImage(img, x, y, x + width, y + height, 0, 0, w, h, null);
+	} finally {
+	    g2.dispose();
+	}
+    }
+
+    public synchronized long hits() {
+	return _hits;
+    }
+
+    public synchronized long misses() {
+	return _misses;
+    }
+
+    public synchronized long evictions() {
+	return _evictions;
+    }
+
+    /** 全てのスロットが参照されていて保存できなかった数を返す。 */
+    public synchronized long rejections() {
+	return _rejections;
+    }
+
+    /** 保存しているサムネイルの数を返す。 */
+    public synchronized int count() {
+	return _index.size();
+    }
+
+    /** Handleから参照されているサムネイルの数を返す。 */
+    public synchronized int pinned() {
+	int n = 0;
+	for (int r : _refs) {
+	    if (r > 0) {
+		n++;
+	    }
+	}
+	return n;
+    }
+
+    /** 保存しているサムネイルが占めるバイト数を返す。 */
+    public synchronized long bytes() {
+	return 4L * _slotSize * _index.size();
+    }
+
+    /** バッファ全体のバイト数を返す。 */
+    public long capacity() {
+	return 4L * _slotSize * _slots;
+    }
+
+    /** 画素のバッファのうちbaseからsize個を参照するDataBuffer。絶対位置で読み書きするのでバッファの位置は変えない。 */
+    private static class SlotBuffer extends DataBuffer {
+	private final IntBuffer _buf;
+	private final int _base;
+
+	SlotBuffer(IntBuffer buf, int base, int size) {
+	    super(DataBuffer.TYPE_INT, size);
+	    _buf = buf;
+	    _base = base;
+	}
+
+	public int getElem(int bank, int i) {
+	    return _buf.get(_base + i);
+	}
+
+	public void setElem(int bank, int i, int val) {
+	    _buf.put(_base + i, val);
+	}
+    }
+
+    /**
+     * スロットに保存したサムネイルへの参照。そのままIconとして描画できる。
+     * 使い終わったらreleaseを呼ぶ。release後は何も描画せず、Iconとしての大きさは0になる。
+     */
+    public class Handle implements Icon {
+	private final int _slot;
+	private boolean _released = false;
+
+	private Handle(int slot) {
+	    _slot = slot;
+	}
+
+	public String url() {
+	    synchronized (ThumbnailStore.this) {
+		return _released ? null : _urls[_slot];
+	    }
+	}
+
+	/** 同じサムネイルを参照する新たなHandleを返す。 */
+	public Handle retain() {
+	    synchronized (ThumbnailStore.this) {
+		if (_released) {
+		    throw new IllegalStateException("already released");
+		}
+		_refs[_slot]++;
+		return new Handle(_slot);
+	    }
+	}
+
+	/** 参照をやめる。複数回呼んでも一度だけ数える。 */
+	public void release() {
+	    synchronized (ThumbnailStore.this) {
+		if (!_released) {
+		    _released = true;
+		    ThumbnailStore.this.release(_slot);
+		}
+	    }
+	}
+
+	/**
+	 * サムネイルを(x, y)から幅width、高さheightに描画する。
+	 * このHandleが参照している間スロットは再利用されないので、描画はストアのロックを手放してから行う。
+	 */
+	public void paint(Graphics g, int x, int y, int width, int height) {
+	    BufferedImage img;
+	    int w, h;
+	    synchronized (ThumbnailStore.this) {
+		if (_released) {
+		    return;
+		}
+		img = view(_slot);
+		w = _widths[_slot];
+		h = _heights[_slot];
+	    }
+	    ThumbnailStore.paint(img, w, h, g, x, y, width, height);
+	}
+
+	/** 幅width、高さheightに拡大縮小して描画するIconを返す。参照はこのHandleのものを用いる。 */
+	public Icon icon(final int width, final int height) {
+	    return new Icon() {
+		public int getIconWidth() {
+		    return width;
+		}
+
+		public int getIconHeight() {
+		    return height;
+		}
+
+		public void paintIcon(Component c, Graphics g, int x, int y) {
+		    paint(g, x, y, width, height);
+		}
+	    };
+	}
+
+	// Icon。release後のスロットは他のサムネイルに使われているかもしれないので、大きさは0とする
+	public int getIconWidth() {
+	    synchronized (ThumbnailStore.this) {
+		return _released ? 0 : _widths[_slot];
+	    }
+	}
+
+	public int getIconHeight() {
+	    synchronized (ThumbnailStore.this) {
+		return _released ? 0 : _heights[_slot];
+	    }
+	}
+
+	public void paintIcon(Component c, Graphics g, int x, int y) {
+	    paint(g, x, y, getIconWidth(), getIconHeight());
+	}
+    }
+}
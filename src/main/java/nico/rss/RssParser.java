@@ -0,0 +1,222 @@
+// -*- coding: utf-8-unix -*-
+package nico.rss;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * ニコ生RSSをStAXで先頭から読み進め、itemごとにHandlerへ通知するパーザ。
+ * clojure.xmlでDOMを構築してzipperで辿る方式と同じ値が得られるよう、
+ * 各要素の値は「最初に出現した同名の子要素の、最初の子要素より前にある空白以外を含むテキスト」とする。
+ */
+public class RssParser {
+    public interface Handler {
+	/** channel直下のnicolive:total_countの内容を通知する。 */
+	void totalCount(String count);
+	/** item要素を一つ読み終える度に通知する。 */
+	void item(Item item);
+    }
+
+    public static class Item {
+	private String _guid = null;
+	private String _title = null;
+	private String _pubDate = null;
+	private String _openTime = null;
+	private String _startTime = null;
+	private String _description = null;
+	private List<String> _categories = new ArrayList<String>();
+	private String _link = null;
+	private String _thumbnail = null;
+	private String _ownerName = null;
+	private String _memberOnly = null;
+	private String _type = null;
+	private String _communityName = null;
+	private String _communityId = null;
+	private int _seen = 0;
+
+	public String getGuid() { return _guid; }
+	public String getTitle() { return _title; }
+	public String getPubDate() { return _pubDate; }
+	public String getOpenTime() { return _openTime; }
+	public String getStartTime() { return _startTime; }
+	public String getDescription() { return _description; }
+	public List<String> getCategories() { return _categories; }
+	public String getLink() { return _link; }
+	public String getThumbnail() { return _thumbnail; }
+	public String getOwnerName() { return _ownerName; }
+	public String getMemberOnly() { return _memberOnly; }
+	public String getType() { return _type; }
+	public String getCommunityName() { return _communityName; }
+	public String getCommunityId() { return _communityId; }
+
+	// 同名の子要素が複数ある場合は最初のものだけを採用する(categoryを除く)
+	private boolean first(Field f) {
+	    int bit = 1 << f.ordinal();
+	    if ((_seen & bit) != 0) {
+		return false;
+	    }
+	    _seen |= bit;
+	    return true;
+	}
+
+	private void set(Field f, String value) {
+	    switch (f) {
+	    case GUID: _guid = value; break;
+	    case TITLE: _title = value; break;
+	    case PUB_DATE: _pubDate = value; break;
+	    case OPEN_TIME: _openTime = value; break;
+	    case START_TIME: _startTime = value; break;
+	    case DESCRIPTION: _description = value; break;
+	    case LINK: _link = value; break;
+	    case OWNER_NAME: _ownerName = value; break;
+	    case MEMBER_ONLY: _memberOnly = value; break;
+	    case TYPE: _type = value; break;
+	    case COMMUNITY_NAME: _communityName = value; break;
+	    case COMMUNITY_ID: _communityId = value; break;
+	    default:
+	    }
+	}
+    }
+
+    private static enum Field {
+	GUID, TITLE, PUB_DATE, OPEN_TIME, START_TIME, DESCRIPTION, CATEGORY, LINK, THUMBNAIL,
+	OWNER_NAME, MEMBER_ONLY, TYPE, COMMUNITY_NAME, COMMUNITY_ID;
+
+	private static final Map<String, Field> names = new HashMap<String, Field>();
+	static {
+	    names.put("guid", GUID);
+	    names.put("title", TITLE);
+	    names.put("pubDate", PUB_DATE);
+	    names.put("nicolive:open_time", OPEN_TIME);
+	    names.put("nicolive:start_time", START_TIME);
+	    names.put("description", DESCRIPTION);
+	    names.put("category", CATEGORY);
+	    names.put("link", LINK);
+	    names.put("media:thumbnail", THUMBNAIL);
+	    names.put("nicolive:owner_name", OWNER_NAME);
+	    names.put("nicolive:member_only", MEMBER_ONLY);
+	    names.put("nicolive:type", TYPE);
+	    names.put("nicolive:community_name", COMMUNITY_NAME);
+	    names.put("nicolive:community_id", COMMUNITY_ID);
+	}
+
+	static Field of(String name) {
+	    return names.get(name);
+	}
+    }
+
+    private static final XMLInputFactory factory = createFactory();
+
+    private static XMLInputFactory createFactory() {
+	XMLInputFactory f = XMLInputFactory.newInstance();
+	// clojure.xml(SAX)と同様に名前空間を解釈せず、"nicolive:type"のような接頭辞つきの名前で扱う
+	f.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.FALSE);
+	f.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+	f.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+	f.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+	return f;
+    }
+
+    private static String qname(XMLStreamReader r) {
+	String prefix = r.getPrefix();
+	String local = r.getLocalName();
+	return (prefix == null || prefix.length() == 0) ? local : prefix + ":" + local;
+    }
+
+    private static boolean blank(CharSequence s) {
+	for (int i = 0; i < s.length(); i++) {
+	    if (!Character.isWhitespace(s.charAt(i))) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * rdrからRSSを読み、total_countとitemをhandlerへ通知する。
+     * rdrのcloseは呼び出し側で行うこと。
+     */
+    public static void parse(Reader rdr, Handler handler) throws XMLStreamException {
+	XMLStreamReader r = factory.createXMLStreamReader(rdr);
+	try {
+	    StringBuilder sb = new StringBuilder(256);
+	    int depth = 0;		// rss: 1, channel: 2, item: 3, itemの子要素: 4
+	    boolean inChannel = false;
+	    boolean inTotal = false;
+	    Item item = null;
+	    Field field = null;	// 値を収集中の子要素
+	    boolean textDone = false;	// 子要素内で孫要素が現れたらそれ以降のテキストは無視する
+	    boolean totalSeen = false;
+
+	    while (r.hasNext()) {
+		switch (r.next()) {
+		case XMLStreamConstants.START_ELEMENT:
+		    depth++;
+		    if (depth == 2) {
+			inChannel = "channel".equals(qname(r));
+		    } else if (inChannel && depth == 3) {
+			String name = qname(r);
+			if ("item".equals(name)) {
+			    item = new Item();
+			} else if (!totalSeen && "nicolive:total_count".equals(name)) {
+			    inTotal = true;
+			    sb.setLength(0);
+			}
+		    } else if (item != null && depth == 4) {
+			Field f = Field.of(qname(r));
+			if (f == Field.THUMBNAIL) {
+			    if (item.first(f)) {
+				item._thumbnail = r.getAttributeValue(null, "url");
+			    }
+			} else if (f == Field.CATEGORY || (f != null && item.first(f))) {
+			    field = f;
+			    textDone = false;
+			    sb.setLength(0);
+			}
+		    } else if (field != null && depth == 5) {
+			textDone = true;
+		    }
+		    break;
+		case XMLStreamConstants.CHARACTERS:
+		case XMLStreamConstants.CDATA:
+		case XMLStreamConstants.SPACE:
+		    if ((field != null && depth == 4 && !textDone) || inTotal) {
+			sb.append(r.getTextCharacters(), r.getTextStart(), r.getTextLength());
+		    }
+		    break;
+		case XMLStreamConstants.END_ELEMENT:
+		    if (inTotal && depth == 3) {
+			// total_countはdata.zip.xml/textと同様に子孫テキストを全て連結したものとする
+			inTotal = false;
+			totalSeen = true;
+			handler.totalCount(blank(sb) ? null : sb.toString());
+		    } else if (field != null && depth == 4) {
+			String value = blank(sb) ? null : sb.toString();
+			if (field == Field.CATEGORY) {
+			    item._categories.add(value);
+			} else {
+			    item.set(field, value);
+			}
+			field = null;
+		    } else if (item != null && depth == 3) {
+			handler.item(item);
+			item = null;
+		    } else if (depth == 2) {
+			inChannel = false;
+		    }
+		    depth--;
+		    break;
+		default:
+		}
+	    }
+	} finally {
+	    r.close();
+	}
+    }
+}
@@ -7,7 +7,15 @@ import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.nio.charset.CharsetDecoder;
 
+/**
+ * XMLとして不正な文字を取り除きながらUTF-8のストリームを読むReader。
+ * 読み込んだ文字は呼び出し元のバッファ上でそのまま詰めるため、readごとの一時バッファは確保しない。
+ * サロゲートペアは対になっている場合のみ通し、片割れだけのものは取り除く。
+ */
 public class XmlReader extends InputStreamReader {
+    private int _carry = -1;		// 前回のreadで返さずに持ち越した文字
+    private boolean _carryValid = false; // _carryが検査済み(サロゲートペアの下位)ならtrue
+
     public XmlReader(InputStream is) throws java.io.UnsupportedEncodingException {
 	super(is, "UTF-8");
     }
@@ -24,39 +32,125 @@ public class XmlReader extends InputStreamReader {
 	super(is, "UTF-8");	// ignore charsetName
     }
 
+    /**
+     * サロゲート以外の文字がXML 1.0で許されるかを返す。
+     * サロゲートペアで表される0x10000以上の文字は呼び出し元で扱う。
+     */
     private static boolean valid(int c) {
 	return ((c == 0x9) ||
 		(c == 0xA) ||
 		(c == 0xD) ||
 		((c >= 0x20) && (c <= 0xD7FF)) ||
-		((c >= 0xE000) && (c <= 0xFFFD)) ||
-		((c >= 0x10000) && (c <= 0x10FFFF)));
+		((c >= 0xE000) && (c <= 0xFFFD)));
     }
 
     public int read() throws IOException {
-	int c;
-	while ((c = super.read()) != -1) {
-	    if (valid(c)) {
-		return c;
+	synchronized (lock) {
+	    while (true) {
+		int c;
+		boolean checked;
+		if (_carry >= 0) {
+		    c = _carry;
+		    checked = _carryValid;
+		    _carry = -1;
+		} else {
+		    c = super.read();
+		    checked = false;
+		}
+		if (c < 0 || checked) {
+		    return c;
+		}
+		if (Character.isHighSurrogate((char)c)) {
+		    int d = super.read();
+		    if (d >= 0) {
+			_carry = d;
+			_carryValid = Character.isLowSurrogate((char)d);
+			if (_carryValid) {
+			    return c;
+			}
+		    }
+		    // 対になっていない上位サロゲートは捨てる
+		} else if (valid(c)) {
+		    return c;
+		}
 	    }
 	}
-	return c;
     }
 
     public int read(char[] cbuf, int offset, int length) throws IOException {
-	char[] tbuf = new char[length];
-	int len = super.read(tbuf, 0, length);
-	if (len > 0) {
-	    int pos = 0;
-	    for (int i = 0; i < len; i++) {
-		if (valid(tbuf[i])) {
-		    cbuf[offset + pos] = tbuf[i];
-		    pos++;
+	if ((offset < 0) || (length < 0) || (offset + length > cbuf.length)) {
+	    throw new IndexOutOfBoundsException();
+	} else if (length == 0) {
+	    return 0;
+	} else if (length == 1) {
+	    int c = read();
+	    if (c < 0) {
+		return -1;
+	    }
+	    cbuf[offset] = (char)c;
+	    return 1;
+	}
+
+	synchronized (lock) {
+	    while (true) {
+		int head = 0;
+		boolean headChecked = false;
+		if (_carry >= 0) {
+		    cbuf[offset] = (char)_carry;
+		    headChecked = _carryValid;
+		    _carry = -1;
+		    head = 1;
+		}
+		int len = super.read(cbuf, offset + head, length - head);
+		boolean eof = len < 0;
+		int end = offset + head + (eof ? 0 : len);
+		int n = filter(cbuf, offset, end, headChecked, eof);
+		if (n > 0) {
+		    return n;
+		} else if (eof && _carry < 0) {
+		    return -1;
+		}
+		// 全て取り除かれた場合は続きを読む
+	    }
+	}
+    }
+
+    /**
+     * cbuf[start, end)から不正な文字を取り除き、残った文字をstartから詰めてその数を返す。
+     * 末尾の上位サロゲートは対になる下位サロゲートがまだ読まれていないため次回に持ち越す。
+     */
+    private int filter(char[] cbuf, int start, int end, boolean headChecked, boolean eof) {
+	int i = headChecked ? start + 1 : start;
+	// 不正な文字が現れるまでは詰める必要がないので読み飛ばす
+	while (i < end) {
+	    char c = cbuf[i];
+	    if ((c >= 0x20 && c < 0xD800) || c == 0xA || c == 0xD || c == 0x9) {
+		i++;
+	    } else {
+		break;
+	    }
+	}
+	int w = i;
+	for (; i < end; i++) {
+	    char c = cbuf[i];
+	    if (c >= 0x20 && c < 0xD800) {
+		cbuf[w++] = c;
+	    } else if (Character.isHighSurrogate(c)) {
+		if (i + 1 < end) {
+		    char d = cbuf[i + 1];
+		    if (Character.isLowSurrogate(d)) {
+			cbuf[w++] = c;
+			cbuf[w++] = d;
+			i++;
+		    }
+		} else if (!eof) {
+		    _carry = c;
+		    _carryValid = false;
 		}
+	    } else if (valid(c)) {
+		cbuf[w++] = c;
 	    }
-	    return pos;
-	} else {
-	    return len;
 	}
+	return w - start;
     }
 }
@@ -18,13 +18,14 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import javax.swing.ImageIcon;
+import javax.swing.Icon;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.border.LineBorder;
 import javax.swing.SwingConstants;
 
 import com.github.sgr.slide.MultiLineLabel;
+import nico.image.ThumbnailStore.Handle;
 import nico.ui.AlertPanelLayout.Slot;
 
 public class AlertPanel extends JPanel implements MouseListener {
@@ -33,7 +34,7 @@ public class AlertPanel extends JPanel implements MouseListener {
     public static Color FOREGROUND_DEFAULT = Color.BLACK;
     public static Color BACKGROUND_DEFAULT = Color.WHITE;
 
-    public static AlertPanel create(String msg, List<Image> icons) {
+    public static AlertPanel create(String msg, List<Handle> icons) {
 	AlertPanel p = new AlertPanel();
 	p.setAlertInfo(msg, icons);
 	return p;
@@ -50,12 +51,12 @@ public class AlertPanel extends JPanel implements MouseListener {
 	    }
 	}
 	removeAll();
-	for (Image img : _imgs) {
-	    img.flush();
+	for (Handle h : _thumbnails) {
+	    h.release();
 	}
-	_imgs.clear();
+	_thumbnails.clear();
 
-	_imgs = null;
+	_thumbnails = null;
 	_msgLabel.dispose();
 	_msgLabel = null;
 	setLayout(null);
@@ -66,35 +67,33 @@ public class AlertPanel extends JPanel implements MouseListener {
     }
 
     private MultiLineLabel _msgLabel = null;
-    private ArrayList<Image> _imgs = new ArrayList<Image>();
+    private ArrayList<Handle> _thumbnails = new ArrayList<Handle>();
     private AlertPanelLayout _layout = null;
 
-    public void setAlertInfo(String msg, List<Image> icons) {
+    /**
+     * メッセージとサムネイルを設定する。サムネイルのハンドルはこのパネルのものとなり、差し替えやdispose時に手放す。
+     */
+    public void setAlertInfo(String msg, List<Handle> icons) {
 	for (Component c : getComponents()) {
 	    if (c instanceof IconLabel) {
 		((IconLabel)c).setIcon(null);
 	    }
 	}
 	removeAll();
-	for (Image img : _imgs) {
-	    img.flush();
+	for (Handle h : _thumbnails) {
+	    h.release();
 	}
-	_imgs.clear();
+	_thumbnails.clear();
 
 	_msgLabel.setText(msg);
 	add(_msgLabel, Slot.MSG);
-	for (Image img : icons) {
-	    Image scaledImg = getScaledImageA(img, AlertPanelLayout.ICON_SIZE.width, AlertPanelLayout.ICON_SIZE.height);
-	    _imgs.add(scaledImg);
-	    add(new IconLabel(new ImageIcon(scaledImg)), Slot.ICON);
+	for (Handle h : icons) {
+	    _thumbnails.add(h);
+	    add(new IconLabel(h.icon(AlertPanelLayout.ICON_SIZE.width, AlertPanelLayout.ICON_SIZE.height)), Slot.ICON);
 	}
 	validate();
     }
 
-    private Image getScaledImageA(Image sourceImage, int width, int height) {
-	return sourceImage.getScaledInstance(width, height, Image.SCALE_AREA_AVERAGING);
-    }
-
     private Image getScaledImageB(Image sourceImage, int width, int height) {
 	BufferedImage scaledImg = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
 	Graphics2D g = scaledImg.createGraphics();
@@ -158,7 +157,7 @@ public class AlertPanel extends JPanel implements MouseListener {
 	    setBorder(new LineBorder(Color.lightGray, 1, false));
 	}
 
-	public IconLabel(ImageIcon icon) {
+	public IconLabel(Icon icon) {
 	    this();
 	    setIcon(icon);
 	}
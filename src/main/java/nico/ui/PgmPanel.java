@@ -8,7 +8,6 @@ import java.awt.Desktop;
 import java.awt.Dimension;
 import java.awt.Font;
 import java.awt.Graphics;
-import java.awt.Image;
 import java.awt.Window;
 import java.io.IOException;
 import java.net.URI;
@@ -31,6 +30,7 @@ import com.github.sgr.slide.LinkHandlers;
 import com.github.sgr.slide.LinkLabel;
 import com.github.sgr.slide.MultiLineLabel;
 
+import nico.image.ThumbnailStore.Handle;
 import nico.ui.PgmPanelLayout.Slot;
 
 public class PgmPanel extends JPanel {
@@ -58,7 +58,7 @@ public class PgmPanel extends JPanel {
 
     public static PgmPanel create(String id, String title, String link, String description,
 				  String owner_name, String comm_name, String comm_id, int type,
-				  int member_only, long start_time, Image thumbnail) {
+				  int member_only, long start_time, Handle thumbnail) {
 	PgmPanel p = new PgmPanel();
 	p.setPgmInfo(id, title, link, description, owner_name, comm_name, comm_id, type, member_only, start_time, thumbnail);
 	return p;
@@ -66,6 +66,7 @@ public class PgmPanel extends JPanel {
 
     public void release() {
 	_id = null;
+	_thumbnailRequest = null;
 	_fgColor = null;
 	_bgColor = null;
 	removeAll();
@@ -78,8 +79,9 @@ public class PgmPanel extends JPanel {
 	_commLabel.dispose();
 	_commLabel = null;
 	_iconLabel.setIcon(null);
+	// サムネイルは他のパネルやキャッシュと共有しているので、画素を捨てずに参照だけを手放す
 	if (_thumbnail != null) {
-	    _thumbnail.flush();
+	    _thumbnail.release();
 	    _thumbnail = null;
 	}
 	_iconLabel = null;
@@ -98,8 +100,8 @@ public class PgmPanel extends JPanel {
 
     private String _id = null;
     private long _start_time = 0;
-    private Image _thumbnail = null;
-    private ImageIcon _thumbnailIcon = null;
+    private Handle _thumbnail = null;
+    private Runnable _thumbnailRequest = null;
     private String _title = null;
     private String _description = null;
     private String _commName = null;
@@ -151,7 +153,7 @@ public class PgmPanel extends JPanel {
 
     public void setPgmInfo(String id, String title, String link, String description,
 			   String owner_name, String comm_name, String comm_id, int type,
-			   int member_only, long start_time, Image thumbnail) {
+			   int member_only, long start_time, Handle thumbnail) {
 	_repaintImmediately = false;
 	setId(id);
 	if (description.length() > 0) {
@@ -290,28 +292,38 @@ public class PgmPanel extends JPanel {
 	return _start_time;
     }
 
-    public void setThumbnail(Image thumbnail) {
-	// Release old image's resource
+    /**
+     * サムネイルを設定する。サムネイルのハンドルはこのパネルのものとなり、差し替えやrelease時に手放す。
+     */
+    public void setThumbnail(Handle thumbnail) {
+	// Release old thumbnail
 	_iconLabel.setIcon(null);
 	if (_thumbnail != null) {
-	    _thumbnail.flush();
+	    _thumbnail.release();
 	    _thumbnail = null;
 	}
-	// Set new image
+	// Set new thumbnail
 	if (thumbnail != null) {
 	    _thumbnail = thumbnail;
-	    ImageIcon icon = new ImageIcon(_thumbnail);
-	    _iconLabel.setIcon(icon);
+	    _iconLabel.setIcon(_thumbnail);
 	} else {
 	    _iconLabel.setIcon(FALLBACK_ICON);
 	}
 	_layout.needLayout();
     }
 
-    public Image getThumbnail() {
+    public Handle getThumbnail() {
 	return _thumbnail;
     }
 
+    /**
+     * サムネイルがない場合に、このパネルが初めて描画される際に一度だけ実行する処理を設定する。
+     * 画面に表示されているパネルのサムネイルを優先して取得するために用いる。
+     */
+    public void setThumbnailRequest(Runnable request) {
+	_thumbnailRequest = request;
+    }
+
     public void setOnly(boolean only) {
 	remove(_onlyLabel);
 	if (only) {
@@ -396,6 +408,13 @@ public class PgmPanel extends JPanel {
     }
 
     public void paint(Graphics g) {
+	if (_thumbnailRequest != null) {
+	    Runnable r = _thumbnailRequest;
+	    _thumbnailRequest = null;
+	    if (_thumbnail == null) {
+		r.run();
+	    }
+	}
 	_timeLabel.setText(relativeTimeString(_start_time));
 	super.paint(g);
     }
@@ -430,7 +449,7 @@ public class PgmPanel extends JPanel {
 	    _commLabel.dispose();
 	}
 	if (_thumbnail != null) {
-	    _thumbnail.flush();
+	    _thumbnail.release();
 	    _thumbnail = null;
 	}
     }
@@ -4,9 +4,12 @@
             [clojure.tools.logging :as log]
             [clojure.core.async :as ca]
             [clojure.java.io :as io]
+            [clojure.java.jdbc :as jdbc]
             [clojure.string :as s]
             [config-file :as cf]
+            [nico.net :as net]
             [nico.rss-test :as rsst]
+            [nico.pgm :as pgm]
             [nico.db :refer :all])
   (:import [java.util Date]))
 
@@ -65,23 +68,58 @@
     (is (nil? (where-clause "(foo and bar)")))
     (is (nil? (where-clause "(foo or bar)")))
     )
-  (testing "where-comms-clause"
-    (let [where-comms-clause @#'nico.db/where-comms-clause]
-      (is (= (where-comms-clause ["co000000" "co000001" "co000002"])
-             "comm_id IN ('co000000','co000001','co000002')"))
-      (is (= (where-comms-clause [])
-             "comm_id IN ('NO_COMMUNITY')"))
-      (is (= (where-comms-clause nil)
-             "comm_id IN ('NO_COMMUNITY')"))
-      ))
+  (testing "fts-text"
+    (let [fts-text @#'nico.db/fts-text]
+      (is (= " a b c" (fts-text "aBc")))
+      (is (= " 雑 談 \ue020 \ue021" (fts-text "雑談 !")))
+      (is (= " 😀 x" (fts-text "😀x")))
+      (is (= " a b c 1" (fts-text "ＡＢｃ１")))
+      (is (= " げ ー む" (fts-text "ｹﾞｰﾑ")))
+      (is (nil? (fts-text nil)))))
+  (testing "fts-like"
+    (let [fts-like @#'nico.db/fts-like]
+      (is (= "% a b%" (fts-like "AB")))
+      (is (= "% 1%%" (fts-like "1%")))
+      (is (= "% a _ b%" (fts-like "a_b")))
+      (is (= "%%" (fts-like "")))))
+  (testing "select-comms"
+    (let [select-comms @#'nico.db/select-comms]
+      (is (= (select-comms "ch0")
+             ["SELECT * FROM pgms WHERE comm_id IN (SELECT comm_id FROM chcomms WHERE ch = ?)" "ch0"]))))
   (testing "sql-kwd"
     (let [sql-kwd @#'nico.db/sql-kwd]
       (is (= (sql-kwd "foo bar" #{:description :title})
-             "SELECT *, description || title AS ccol FROM pgms WHERE ((ccol LIKE '%foo%') AND (ccol LIKE '%bar%')) ORDER BY open_time DESC"))
+             [(str "SELECT * FROM pgms"
+                   " WHERE (description IS NOT NULL AND title IS NOT NULL)"
+                   " AND ((id IN (SELECT id FROM pgms_fts WHERE title MATCH ?"
+                   " UNION SELECT id FROM pgms_fts WHERE description MATCH ?))"
+                   " AND (id IN (SELECT id FROM pgms_fts WHERE title MATCH ?"
+                   " UNION SELECT id FROM pgms_fts WHERE description MATCH ?)))"
+                   " ORDER BY open_time DESC")
+              "\" f o o\"" "\" f o o\"" "\" b a r\"" "\" b a r\""]))
       (is (= (sql-kwd "foo bar" #{:description :title} 73)
-             "SELECT *, description || title AS ccol FROM pgms WHERE ((ccol LIKE '%foo%') AND (ccol LIKE '%bar%')) ORDER BY open_time DESC LIMIT 73"))
+             (-> (sql-kwd "foo bar" #{:description :title}) (update-in [0] str " LIMIT ?") (conj 73))))
       (is (= (sql-kwd "foo bar" #{:title})
-             "SELECT *, title AS ccol FROM pgms WHERE ((ccol LIKE '%foo%') AND (ccol LIKE '%bar%')) ORDER BY open_time DESC"))
+             [(str "SELECT * FROM pgms WHERE (title IS NOT NULL)"
+                   " AND ((id IN (SELECT id FROM pgms_fts WHERE title MATCH ?))"
+                   " AND (id IN (SELECT id FROM pgms_fts WHERE title MATCH ?)))"
+                   " ORDER BY open_time DESC")
+              "\" f o o\"" "\" b a r\""]))
+      (is (= (sql-kwd "1%" #{:title})
+             [(str "SELECT * FROM pgms WHERE (title IS NOT NULL)"
+                   " AND (id IN (SELECT id FROM pgms_fts WHERE title LIKE ?)) ORDER BY open_time DESC")
+              "% 1%%"]))
+      (is (= (sql-kwd "1%" #{:title :comm_id})
+             [(str "SELECT *, " (s/join " || " (map name #{:title :comm_id})) " AS ccol FROM pgms"
+                   " WHERE (" (s/join " AND " (map #(str (name %) " IS NOT NULL") #{:title :comm_id})) ")"
+                   " AND (ccol LIKE ?) ORDER BY open_time DESC")
+              "%1%%"]))
+      (is (= (sql-kwd "it's" #{:title})
+             [(str "SELECT * FROM pgms WHERE (title IS NOT NULL)"
+                   " AND (id IN (SELECT id FROM pgms_fts WHERE title MATCH ?)) ORDER BY open_time DESC")
+              "\" i t \ue027 s\""]))
+      (is (= (first (sql-kwd "(and" #{:title}))
+             "SELECT * FROM pgms WHERE (title IS NOT NULL) AND 0 ORDER BY open_time DESC"))
       (is (thrown? java.lang.AssertionError (sql-kwd "foo bar" #{})))
       (is (thrown? java.lang.AssertionError (sql-kwd nil #{:title})))
       (is (thrown? java.lang.AssertionError (sql-kwd "" #{:title})))
@@ -93,6 +131,340 @@
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 
+(defn- mem-db [& [uri]]
+  (let [db {:connection (java.sql.DriverManager/getConnection (or uri "jdbc:sqlite::memory:")) :stmts (atom {}) :free (atom 0)}]
+    (@#'nico.db/create-db! db)
+    db))
+
+(deftest add-test
+  (let [db (mem-db)
+        add! @#'nico.db/add!
+        kwd-clause @#'nico.db/kwd-clause
+        p (fn [id title desc comm start updated]
+            (pgm/->Pgm id title start start desc "一般" (str "http://live.nicovideo.jp/watch/" id) "http://icon"
+                       "owner" 0 0 "comm" comm updated updated))
+        row (fn [id] (first (jdbc/query db ["SELECT * FROM pgms WHERE id = ?" id])))
+        search (fn [q] (let [[where & params] (kwd-clause q #{:title})]
+                         (set (jdbc/query db (into [(str "SELECT id FROM pgms WHERE " where)] params) :row-fn :id))))]
+    (is (= [2 0] (add! db [(p "lv1" "title" "long description" "co1" 1000 1000)
+                           (p "lv2" "other" "desc" "co2" 1000 1000)])))
+    (testing "merging an existing program"
+      (is (= [0 0] (add! db [(p "lv1" "longer title" "short" "co1" 1000 2000)])))
+      (let [r (row "lv1")]
+        (is (= "longer title" (:title r)))
+        (is (= "long description" (:description r)))
+        (is (= 2000 (:updated_at r))))
+      (is (= #{"lv1"} (search "longer"))))
+    (testing "a newer program of the same community replaces the older one"
+      (is (= [1 1] (add! db [(p "lv3" "new" "desc" "co2" 2000 2000)])))
+      (is (nil? (row "lv2")))
+      (is (= #{} (search "other")))
+      (is (= #{"lv3"} (search "new"))))
+    (testing "only the newest program of a community is kept in one batch"
+      (is (= [1 0] (add! db [(p "lv5" "newer" "desc" "co5" 4000 4000)
+                             (p "lv4" "older" "desc" "co5" 3000 3000)])))
+      (is (nil? (row "lv4")))
+      (is (= "newer" (:title (row "lv5")))))
+    (.close ^java.sql.Connection (:connection db))))
+
+(deftest snapshot-test
+  (let [db (mem-db)
+        f (java.io.File/createTempFile "pgms" ".db")
+        p (fn [id title comm updated]
+            (pgm/->Pgm id title updated updated "desc" "一般" (str "http://live.nicovideo.jp/watch/" id) "http://icon"
+                       "owner" 0 0 "comm" comm updated updated))
+        now (System/currentTimeMillis)]
+    (@#'nico.db/add! db [(p "lv1" "old" "co1" (- now 3600000))
+                         (p "lv2" "new" "co2" now)])
+    (@#'nico.db/write-snapshot! db f)
+    (.close ^java.sql.Connection (:connection db))
+    (testing "expired programs are dropped"
+      (let [ndb (@#'nico.db/restore-snapshot (mem-db) f (- now 1800000) 3600000)
+            [where & params] (@#'nico.db/kwd-clause "new" #{:title})]
+        (is ndb)
+        (is (= ["lv2"] (jdbc/query ndb ["SELECT id FROM pgms"] :row-fn :id)))
+        (is (= ["lv2"] (jdbc/query ndb (into [(str "SELECT id FROM pgms WHERE " where)] params) :row-fn :id)))
+        (is (= 0 (jdbc/query ndb ["SELECT COUNT(*) AS cnt FROM chcomms"] :row-fn :cnt :result-set-fn first)))
+        (.close ^java.sql.Connection (:connection ndb))))
+    (testing "a snapshot older than max-age by the system clock is ignored"
+      (.setLastModified f (- (System/currentTimeMillis) 3700000))
+      (is (nil? (@#'nico.db/restore-snapshot (mem-db) f (- now 1800000) 3600000))))
+    (testing "the age does not depend on nico.net/now"
+      (.setLastModified f (System/currentTimeMillis))
+      ;; 再生中などでnico.net/nowがシステムの時計より進んでいても、書き出したばかりのスナップショットは使う
+      (let [ndb (@#'nico.db/restore-snapshot (mem-db) f (+ now 7200000) 3600000)]
+        (is ndb)
+        (is (= [] (jdbc/query ndb ["SELECT id FROM pgms"] :row-fn :id)))
+        (.close ^java.sql.Connection (:connection ndb))))
+    (.delete f)))
+
+(deftest idle-snapshot-test
+  (let [f (java.io.File/createTempFile "pgms" ".db")
+        oc (ca/chan (ca/sliding-buffer 64))
+        _ (.delete f)
+        cc (boot oc f)
+        p (pgm/->Pgm "lv1" "title" 1000 1000 "desc" "一般" "http://live.nicovideo.jp/watch/lv1" nil
+                     "owner" 0 0 "comm" "co1" (net/now) (net/now))]
+    (testing "the snapshot is written once commands stop coming"
+      (ca/>!! cc {:cmd :add-pgms :pgms [p] :force-search false})
+      (is (loop [n 0]
+            (cond
+              (.isFile f) true
+              (< 100 n) false
+              :else (do (Thread/sleep 100) (recur (inc n)))))))
+    (ca/close! cc)
+    (Thread/sleep 200)
+    (.delete f)))
+
+(deftest end-pgms-test
+  (let [oc (ca/chan)
+        cc (boot oc)
+        p (fn [id] (pgm/->Pgm id "歌ってみた" 1000 1000 "desc" "一般" (str "http://live.nicovideo.jp/watch/" id) nil
+                              "owner" 0 0 "comm" (s/replace id "lv" "co") (net/now) (net/now)))
+        next-status (fn [status] (loop []
+                                   (let [[c _] (ca/alts!! [oc (ca/timeout 5000)])]
+                                     (cond
+                                      (nil? c) nil
+                                      (= status (:status c)) c
+                                      :else (recur)))))]
+    (ca/>!! cc {:cmd :set-query-kwd :id "kwd" :query "歌" :target #{:title}})
+    (is (= {} (:results (next-status :searched))))
+    (ca/>!! cc {:cmd :add-pgms :pgms [(p "lv1") (p "lv2")] :force-search true})
+    (is (= #{"lv1" "lv2"} (set (map :id (get-in (next-status :searched) [:results "kwd" :added])))))
+    (testing "ended programs are removed from the DB and the search results"
+      (ca/>!! cc {:cmd :end-pgms :ids ["lv1" "lv9"]})
+      (is (= #{"lv1"} (get-in (next-status :searched) [:results "kwd" :removed])))
+      (ca/>!! cc {:cmd :add-pgms :pgms [] :force-search false})
+      (let [{:keys [npgms evicted]} (next-status :db-stat)]
+        (is (= 1 npgms))
+        (is (= 1 (:ended evicted)))))
+    (ca/close! cc)))
+
+(deftest deferred-search-test
+  (let [oc (ca/chan)
+        cc (boot oc)
+        p (fn [id] (pgm/->Pgm id "歌ってみた" 1000 1000 "desc" "一般" (str "http://live.nicovideo.jp/watch/" id) nil
+                              "owner" 0 0 "comm" (s/replace id "lv" "co") (net/now) (net/now)))
+        searched (fn [] (loop []
+                          (let [[c _] (ca/alts!! [oc (ca/timeout 5000)])]
+                            (cond
+                             (nil? c) nil
+                             (= :searched (:status c)) c
+                             :else (recur)))))]
+    (ca/>!! cc {:cmd :set-query-kwd :id "kwd" :query "歌" :target #{:title}})
+    ;; 登録時の検索結果を受け取るまでDBのスレッドは止まっているので、その間に登録を続けて積み、:set-totalで終える
+    (ca/>!! cc {:cmd :add-pgms :pgms [(p "lv1")] :force-search false})
+    (ca/>!! cc {:cmd :add-pgms :pgms [(p "lv2")] :force-search true})
+    (ca/>!! cc {:cmd :set-total :total 100})
+    (is (= {} (:results (searched))))
+    (testing "the search put off by the burst runs once the queue is empty"
+      (is (= #{"lv1" "lv2"} (set (map :id (get-in (searched) [:results "kwd" :added]))))))
+    (ca/close! cc)))
+
+(deftest reader-test
+  (let [uri (@#'nico.db/conn-uri)
+        db (mem-db uri)
+        rdb {:connection (java.sql.DriverManager/getConnection uri)}
+        p (fn [id comm]
+            (pgm/->Pgm id "title" 1000 1000 "desc" "一般" (str "http://live.nicovideo.jp/watch/" id) "http://icon"
+                       "owner" 0 0 "comm" comm 1000 1000))
+        cnt (fn [] (jdbc/query rdb ["SELECT COUNT(*) AS cnt FROM pgms"] :row-fn :cnt :result-set-fn first))]
+    (jdbc/db-do-commands rdb false "PRAGMA read_uncommitted = true")
+    (@#'nico.db/add! db [(p "lv1" "co1")])
+    (is (= 1 (cnt)))
+    (testing "reading while the writer holds a transaction"
+      (jdbc/with-db-transaction [tdb db]
+        (@#'nico.db/add!* tdb [(p "lv2" "co2")])
+        (is (<= 1 (cnt)))))
+    (is (= 2 (cnt)))
+    (.close ^java.sql.Connection (:connection rdb))
+    (.close ^java.sql.Connection (:connection db))))
+
+(deftest retention-test
+  (let [S @#'nico.db/SLICE-MSEC
+        db (assoc (mem-db) :buckets (atom (@#'nico.db/empty-buckets)))
+        evict! (fn [opts] (@#'nico.db/evict! db (+ (* 10 S) 1000)
+                           (merge {:retention (* 100 S) :min-keep 0 :max-rows 100 :max-bytes Long/MAX_VALUE} opts)))
+        p (fn [id updated]
+            (pgm/->Pgm id "title" updated updated "desc" "一般" (str "http://live.nicovideo.jp/watch/" id) "http://icon"
+                       "owner" 0 0 "comm" (str "co" id) updated updated))
+        ids (fn [] (set (jdbc/query db ["SELECT id FROM pgms"] :row-fn :id)))]
+    (@#'nico.db/add! db [(p "lv1" 0) (p "lv2" S) (p "lv3" (* 2 S)) (p "lv4" (* 10 S)) (p "lv5" (* 10 S))])
+    (testing "an updated program moves to a newer bucket"
+      (@#'nico.db/add! db [(p "lv1" (* 10 S))])
+      (is (= #{"lv1" "lv4" "lv5"} (get-in @(:buckets db) [:slices 10]))))
+    (testing "nothing is evicted within the budgets"
+      (is (= {} (evict! {}))))
+    (testing "the oldest buckets are evicted over the row budget"
+      (is (= {:rows 1} (evict! {:max-rows 4})))
+      (is (= #{"lv1" "lv3" "lv4" "lv5"} (ids))))
+    (testing "recently updated programs are kept"
+      (is (= {:rows 1} (evict! {:max-rows 0 :min-keep (* 5 S)})))
+      (is (= #{"lv1" "lv4" "lv5"} (ids))))
+    (testing "expired buckets"
+      (@#'nico.db/add! db [(p "lv6" (* 3 S))])
+      (is (= {:expired 1} (evict! {:retention (* 5 S)})))
+      (is (= #{"lv1" "lv4" "lv5"} (ids)))
+      (is (= #{"lv1" "lv4" "lv5"} (set (keys (:slice-of @(:buckets db)))))))
+    (.close ^java.sql.Connection (:connection db))))
+
+(deftest delta-test
+  (let [delta @#'nico.db/delta
+        row (fn [id] {:id id})]
+    (testing "only changed programs are evaluated"
+      (let [[d ids] (delta #{"lv1" "lv2" "lv3"} [(row "lv2") (row "lv4")] #{"lv2" "lv3" "lv4"} #{"lv1"} false)]
+        (is (= [(row "lv4")] (:added d)))
+        (is (= #{"lv1" "lv3"} (:removed d)))
+        (is (= [(row "lv2")] (:updated d)))
+        (is (= #{"lv2" "lv4"} ids))))
+    (testing "full evaluation"
+      (let [[d ids] (delta #{"lv1" "lv2"} [(row "lv2") (row "lv3")] #{} #{} true)]
+        (is (= [(row "lv3")] (:added d)))
+        (is (= #{"lv1"} (:removed d)))
+        (is (empty? (:updated d)))
+        (is (= #{"lv2" "lv3"} ids))))
+    (testing "mark-dirty!"
+      (let [db {:dirty (atom {:changed #{} :removed #{}})}
+            mark-dirty! @#'nico.db/mark-dirty!]
+        (mark-dirty! db ["lv1" "lv2"] [])
+        (mark-dirty! db [] ["lv2" "lv3"])
+        (is (= {:changed #{"lv1"} :removed #{"lv2" "lv3"}} @(:dirty db)))
+        (mark-dirty! db ["lv3"] [])
+        (is (= {:changed #{"lv1" "lv3"} :removed #{"lv2"}} @(:dirty db)))))))
+
+(deftest matcher-test
+  (let [db (mem-db)
+        p (fn [id title desc comm]
+            (pgm/->Pgm id title 0 0 desc "一般" (str "http://live.nicovideo.jp/watch/" id) "http://icon"
+                       "owner" 0 0 "comm" comm 0 0))
+        pgms [(p "lv1" "Foo Bar" "雑談します" "co1")
+              (p "lv2" "foobaz" "歌枠" "co2")
+              (p "lv3" "ゲーム実況" nil "co3")
+              (p "lv4" "100%勝つ" "a_b" "co4")]
+        chs {"c1" {:query "foo" :target #{:title}}
+             "c2" {:query "(and foo (not bar))" :target #{:title}}
+             "c3" {:query "(or 雑談 ゲーム)" :target #{:title :description}}
+             "c4" {:query "ゲーム" :target #{:title}}
+             "c5" {:query "1%勝" :target #{:title}}
+             "c6" {:query "z歌" :target #{:title :description}} ; カラムをまたぐ部分文字列にはマッチしない
+             "c7" {:query "o b" :target #{:title}}
+             "c8" {:query "(and)" :target #{:title}}
+             "c10" {:query "ｹﾞｰﾑ" :target #{:title}} ; 半角カナやカタカナもひらがなとして比べる
+             "c11" {:query "ＦＯＯ%" :target #{:title}}
+             "c9" {:comms #{"co2" "co3"}}}
+        matcher (compile-matcher chs)
+        matched (reduce (fn [m pgm] (reduce #(update-in %1 [%2] (fnil conj #{}) (:id pgm)) m (match-pgm matcher pgm)))
+                        {} pgms)]
+    (@#'nico.db/add! db pgms)
+    (is (= {"c1" #{"lv1" "lv2"} "c2" #{"lv2"} "c3" #{"lv1"} "c4" #{"lv3"} "c5" #{"lv4"}
+            "c7" #{"lv1" "lv2"} "c9" #{"lv2" "lv3"} "c10" #{"lv3"} "c11" #{"lv1" "lv2"}}
+           matched))
+    (testing "same as SQL"
+      (doseq [[id {:keys [query target comms]}] chs :when (not= "c8" id)]
+        (let [sql-params (if comms
+                           (do (@#'nico.db/set-comms! db id comms)
+                               (@#'nico.db/select-comms id))
+                           (@#'nico.db/select-kwd query target))]
+          (is (= (get matched id #{}) (set (jdbc/query db sql-params :row-fn :id))) id))))
+    (.close ^java.sql.Connection (:connection db))))
+
+(deftest ^{:db true :data true} fts-equivalence-test
+  ;; 全文検索テーブルとマッチャーによる検索結果が一致することを確かめる。
+  ;; 正規化して比べるので、連結カラムに対するLIKEの結果は参考として件数のみ出力する
+  (let [db (mem-db)
+        pgms (->> (rsst/rsss 180) (map rsst/rss-xml) (mapcat #(rsst/extract-pgms % :type :user)))
+        target #{:owner_name :comm_name :title :description :category}
+        ids (fn [where & params] (set (jdbc/query db (into [(format "SELECT id, %s AS ccol FROM pgms WHERE %s"
+                                                                     (s/join " || " (map name target)) where)]
+                                                            params)
+                                                  :row-fn :id)))]
+    (@#'nico.db/add! db pgms)
+    (doseq [q ["顔" "歌" "雑談" "一般" "ゲーム" "game" "(or 歌 ゲーム)" "(and 雑談 (not 顔))" "\"a b\""]]
+      (let [a (System/nanoTime)
+            like (ids (where-clause q))
+            b (System/nanoTime)
+            fts (apply ids (@#'nico.db/kwd-clause q target))
+            c (System/nanoTime)
+            matcher (compile-matcher {q {:query q :target target}})
+            matched (set (map :id (filter #(seq (match-pgm matcher %)) pgms)))
+            d (System/nanoTime)]
+        (log/infof "%s: LIKE %d pgms %.2f msec, FTS %d pgms %.2f msec, matcher %.2f msec"
+                   q (count like) (/ (- b a) 1e6) (count fts) (/ (- c b) 1e6) (/ (- d c) 1e6))
+        (is (= fts matched) q)))))
+
+(deftest ^{:stress true :db true :data true} matcher-comparison-test
+  ;; 変化した番組をチャネルごとにSQLで評価する場合と、マッチャーでまとめて評価する場合を比べる
+  (let [db (mem-db)
+        pgms (->> (rsst/rsss 180) (map rsst/rss-xml) (mapcat #(rsst/extract-pgms % :type :user)))
+        target #{:owner_name :comm_name :title :description :category}
+        words (->> pgms (map :title) (remove s/blank?) (map #(subs % 0 (min 2 (count %)))) distinct vec)
+        rnd (java.util.Random. 0)
+        word #(nth words (.nextInt rnd (count words)))
+        query #(condp = (.nextInt rnd 3)
+                 0 (word)
+                 1 (format "(or %s %s)" (word) (word))
+                 2 (format "(and %s (not %s))" (word) (word)))
+        ids (map :id pgms)]
+    (@#'nico.db/add! db pgms)
+    (doseq [n [10 100 1000]]
+      (let [chs (into {} (for [i (range n)] [(str "ch" i) {:query (query) :target target}]))
+            sqls (map (fn [[_ {:keys [query target]}]] (@#'nico.db/select-kwd query target)) chs)
+            a (System/nanoTime)
+            by-sql (doall (for [sql-params sqls] (set (jdbc/query db sql-params :row-fn :id))))
+            b (System/nanoTime)
+            matcher (compile-matcher chs)
+            c (System/nanoTime)
+            rows (@#'nico.db/query-in db "SELECT * FROM pgms WHERE id IN (%s)" ids)
+            matched (doall (map #(match-pgm matcher %) rows))
+            d (System/nanoTime)]
+        (log/infof "%d channels, %d pgms: SQL %.1f msec, matcher %.1f msec (compile %.1f msec)"
+                   n (count rows) (/ (- b a) 1e6) (/ (- d c) 1e6) (/ (- c b) 1e6))
+        (is (= (vec by-sql)
+               (vec (for [id (keys chs)] (set (keep (fn [[r m]] (when (contains? m id) (:id r))) (map vector rows matched)))))))))
+    (.close ^java.sql.Connection (:connection db))))
+
+;; 以前のvacuum!と同じく、新しいDBを作って全行をコピーする
+(defn- copy-vacuum! [db]
+  (let [ndb (mem-db)]
+    (jdbc/with-db-transaction [ndb ndb]
+      (jdbc/query db "SELECT * FROM pgms" :row-fn #(jdbc/insert! ndb :pgms %))
+      (jdbc/query db "SELECT docid, id, title, description, owner_name, category, comm_name FROM pgms_fts"
+                  :row-fn #(jdbc/insert! ndb :pgms_fts %)))
+    ndb))
+
+(deftest ^{:stress true :db true} vacuum-comparison-test
+  ;; 繁忙期相当の7000番組を登録して3割を削除した後の、VACUUMによる停止時間を比べる
+  (let [N 7000
+        pgms (for [i (range N)]
+               (pgm/->Pgm (str "lv" i) (str "タイトル" i) i i (apply str (repeat 20 (str "説明文" i)))
+                          "一般,ゲーム" (str "http://live.nicovideo.jp/watch/lv" i) "http://icon"
+                          (str "owner" i) 0 0 (str "コミュニティ" i) (str "co" i) i i))
+        prepare (fn []
+                  (let [db (mem-db)]
+                    (@#'nico.db/add! db pgms)
+                    (let [ids (map #(str "lv" %) (range (int (* 0.3 N))))]
+                      (jdbc/with-db-transaction [db db]
+                        (@#'nico.db/delete-fts! db ids)
+                        (@#'nico.db/batch! db "DELETE FROM pgms WHERE id = ?" (map vector ids))))
+                    db))
+        measure (fn [f] (let [a (System/nanoTime) r (f)] [(/ (- (System/nanoTime) a) 1e6) r]))]
+    (let [db (prepare)
+          [msec ndb] (measure #(copy-vacuum! db))]
+      (log/infof "copy-vacuum!: %.1f msec" msec)
+      (is (= (- N (int (* 0.3 N))) (count (jdbc/query ndb ["SELECT id FROM pgms"]))))
+      (.close ^java.sql.Connection (:connection db))
+      (.close ^java.sql.Connection (:connection ndb)))
+    (let [db (prepare)
+          free (jdbc/query db ["PRAGMA freelist_count"] :row-fn :freelist_count :result-set-fn first)
+          steps (loop [steps []]
+                  (let [[msec free] (measure #(@#'nico.db/vacuum! db 256))
+                        steps (conj steps msec)]
+                    (if (pos? free) (recur steps) steps)))]
+      (log/infof "incremental vacuum!: %d free pages, %d steps, max %.1f msec, total %.1f msec"
+                 free (count steps) (apply max steps) (apply + steps))
+      (is (zero? @(:free db)))
+      (.close ^java.sql.Connection (:connection db)))))
+
 (defn- set-pgm-time [d pgm]
   (assoc pgm :id (format "lv%d" (rand-int Integer/MAX_VALUE)) :open_time d :fetched_at d :updated_at d))
 
@@ -112,7 +484,8 @@
            :db-stat  (:npgms c)
            :searched (do
                        (log/info (format " searched [%d] (" npgms)
-                                 (s/join "," (map (fn [[k v]] (format "%s=%d" k (count v))) (:results c)))
+                                 (s/join "," (map (fn [[k v]] (format "%s=+%d-%d" k (count (:added v)) (count (:removed v))))
+                                                (:results c)))
                                  ")")
                        npgms)
            (log/errorf "Unknown command [%s]" (pr-str c))))))
@@ -0,0 +1,228 @@
+;; -*- coding: utf-8-unix -*-
+(ns nico.image-test
+  (:require [clojure.test :refer :all]
+            [clojure.tools.logging :as log]
+            [nico.image :refer :all])
+  (:import [java.awt Component Image MediaTracker RenderingHints]
+           [java.awt.image BufferedImage]
+           [java.io ByteArrayInputStream ByteArrayOutputStream File]
+           [java.lang.management ManagementFactory]
+           [javax.imageio ImageIO]
+           [nico.image DiskCache ThumbnailStore ThumbnailStore$Handle]
+           [nico.ui AlertPanel PgmPanel]))
+
+(defn- temp-dir []
+  (let [f (File/createTempFile "thumbnails" "")]
+    (.delete f)
+    f))
+
+(defn- delete-dir [^File dir]
+  (doseq [^File f (.listFiles dir)] (.delete f))
+  (.delete dir))
+
+(deftest disk-cache-test
+  (let [dir (temp-dir)
+        data (fn [n] (byte-array n (byte 1)))]
+    (testing "survives reopening"
+      (let [dc (DiskCache. dir 64 10000 60000)]
+        (.put dc "http://icon/1" (data 10))
+        (.put dc "http://icon/2" (data 20))
+        (is (= 10 (count (.get dc "http://icon/1"))))
+        (is (nil? (.get dc "http://icon/3")))
+        (is (= [1 1] [(.hits dc) (.misses dc)]))
+        (.close dc))
+      (let [dc (DiskCache. dir 64 10000 60000)]
+        (is (= 2 (.count dc)))
+        (is (= 20 (count (.get dc "http://icon/2"))))
+        (.close dc)))
+    (testing "the oldest ones are evicted over the byte budget"
+      (let [dc (DiskCache. dir 64 200 60000)]
+        (doseq [i (range 10)]
+          (.put dc (str "http://icon/" i) (data 50))
+          (Thread/sleep 2))
+        (is (<= (.bytes dc) 200))
+        (is (pos? (.evictions dc)))
+        (is (.get dc "http://icon/9"))
+        (is (nil? (.get dc "http://icon/0")))
+        (.close dc)))
+    (delete-dir dir)
+    (testing "expired ones are misses"
+      (let [dc (DiskCache. dir 64 10000 0)]
+        (.put dc "http://icon/1" (data 10))
+        (Thread/sleep 5)
+        (is (nil? (.get dc "http://icon/1")))
+        (is (zero? (.count dc)))
+        (.close dc)))
+    (delete-dir dir)))
+
+(deftest image-to-bytes-test
+  (let [img (BufferedImage. 64 64 BufferedImage/TYPE_INT_ARGB)
+        bs (@#'nico.image/image-to-bytes img)
+        img2 (@#'nico.image/image-from-bytes bs 64 64)]
+    (is (= [64 64] [(.getWidth img2) (.getHeight img2)]))))
+
+(defn- icon-bytes
+  "縦横sizeのJPEGのコミュニティアイコンに似せたバイト列を返す。"
+  [size seed]
+  (let [img (BufferedImage. size size BufferedImage/TYPE_INT_RGB)
+        r (java.util.Random. seed)
+        bos (ByteArrayOutputStream.)]
+    (dotimes [y size]
+      (dotimes [x size]
+        (.setRGB img x y (bit-xor (* 0x010101 (quot (* 255 (+ x y)) (* 2 size))) (.nextInt r 0x202020)))))
+    (ImageIO/write img "jpg" bos)
+    (.toByteArray bos)))
+
+(deftest image-from-bytes-test
+  (let [from-bytes @#'nico.image/image-from-bytes]
+    (testing "large images are scaled down to the icon size"
+      (doseq [size [128 150 500]]
+        (let [^BufferedImage img (from-bytes (icon-bytes size 1) 64 64)]
+          (is (= [64 64] [(.getWidth img) (.getHeight img)])))))
+    (testing "small images keep their size"
+      (let [^BufferedImage img (from-bytes (icon-bytes 48 1) 64 64)]
+        (is (= [48 48] [(.getWidth img) (.getHeight img)]))))
+    (testing "broken data"
+      (is (nil? (from-bytes (byte-array 10) 64 64))))))
+
+(let [dummy-component (proxy [Component] [])]
+  (defn- decode-and-scale-old
+    "以前の縮小方法。全体を読み込んでからgetScaledInstanceで縮小し、MediaTrackerで待つ。"
+    [bs width height]
+    (let [^Image img (with-open [bais (ByteArrayInputStream. bs)] (ImageIO/read bais))
+          scaled (.getScaledInstance img width height Image/SCALE_AREA_AVERAGING)
+          mt (MediaTracker. dummy-component)]
+      (.addImage mt scaled 1)
+      (.waitForAll mt)
+      (.removeImage mt scaled)
+      (.flush img)
+      scaled)))
+
+(defn- measure
+  "iconsのそれぞれにfを適用し、1枚あたりの時間ミリ秒と割り当てたバイト数を返す。"
+  [f icons]
+  (let [^com.sun.management.ThreadMXBean mx (ManagementFactory/getThreadMXBean)
+        tid (.getId (Thread/currentThread))
+        ;; JITを温める
+        _ (doseq [bs (take 50 icons)] (.flush ^Image (f bs 64 64)))
+        bytes0 (.getThreadAllocatedBytes mx tid)
+        t0 (System/nanoTime)]
+    (doseq [bs icons] (.flush ^Image (f bs 64 64)))
+    (let [n (count icons)]
+      [(/ (- (System/nanoTime) t0) 1e6 n)
+       (quot (- (.getThreadAllocatedBytes mx tid) bytes0) n)])))
+
+(deftest ^{:stress true} decode-and-scale-stress-test
+  (doseq [size [128 150 500]]
+    (let [icons (vec (for [i (range 200)] (icon-bytes size i)))
+          [old-msec old-bytes] (measure decode-and-scale-old icons)
+          [new-msec new-bytes] (measure @#'nico.image/image-from-bytes icons)]
+      (log/infof "%dx%d: getScaledInstance %.3f msec, %d bytes / ImageReader %.3f msec, %d bytes"
+                 size size old-msec old-bytes new-msec new-bytes)
+      (is (< new-msec old-msec)))))
+
+(deftest thumbnail-store-test
+  (let [ts (ThumbnailStore. 64 64 (* 3 64 64 4))
+        img (doto (BufferedImage. 48 40 BufferedImage/TYPE_INT_ARGB) (.setRGB 1 1 (unchecked-int 0xff123456)))
+        img2 (doto (BufferedImage. 48 40 BufferedImage/TYPE_INT_ARGB) (.setRGB 1 1 (unchecked-int 0xff654321)))
+        pixel (fn [^ThumbnailStore$Handle h]
+                (let [out (BufferedImage. 64 64 BufferedImage/TYPE_INT_ARGB)]
+                  (.paint h (.createGraphics out) 0 0 48 40)
+                  (.getRGB out 1 1)))
+        [h1 h2 h3] (doall (for [i (range 3)] (.put ts (str "http://icon/" i) img)))]
+    (testing "pinned slots are not evicted"
+      (is (nil? (.put ts "http://icon/3" img)))
+      (is (= 1 (.rejections ts))))
+    (testing "the least recently used slot is reused after released"
+      (is (= (unchecked-int 0xff123456) (pixel h1)))
+      (.release h1)
+      (.release h1)
+      (let [h4 (.put ts "http://icon/3" img2)]
+        (is (= "http://icon/3" (.url h4)))
+        (is (not (.contains ts "http://icon/0")))
+        (is (= [1 3 3] [(.evictions ts) (.count ts) (.pinned ts)]))
+        (is (= [48 40] [(.getIconWidth h4) (.getIconHeight h4)]))
+        ;; 再利用したスロットを描画すると、新しく保存した画素が見える
+        (is (= (unchecked-int 0xff654321) (pixel h4)))
+        (let [g (.createGraphics (BufferedImage. 64 64 BufferedImage/TYPE_INT_ARGB))
+              hint (.getRenderingHint g RenderingHints/KEY_INTERPOLATION)]
+          ;; 拡大して描画しても呼び出し元のGraphicsの設定は変えない
+          (.paint h4 g 0 0 64 64)
+          (is (= hint (.getRenderingHint g RenderingHints/KEY_INTERPOLATION))))))
+    (testing "drawing does not hold the store lock"
+      (let [held (atom nil)
+            g (proxy [java.awt.Graphics] []
+                (create ([] this) ([x y w h] this))
+                (drawImage [& _] (reset! held (Thread/holdsLock ts)) true)
+                (dispose []))]
+        (.paint h3 g 0 0 48 40)
+        (is (false? @held))))
+    (testing "retained handles keep the slot"
+      (let [h (.retain h2)]
+        (.release h2)
+        (is (= [0 0] [(.getIconWidth h2) (.getIconHeight h2)]))
+        (is (= [48 40] [(.getIconWidth h) (.getIconHeight h)]))
+        (is (= 3 (.pinned ts)))
+        (.release h)
+        (is (= 2 (.pinned ts)))))))
+
+(deftest loader-test
+  (let [calls (atom 0)
+        ts (ThumbnailStore. 64 64 (* 16 64 64 4))
+        img (BufferedImage. 64 64 BufferedImage/TYPE_INT_ARGB)]
+    (testing "concurrent requests for the same URL share one fetch"
+      (with-redefs [nico.image/load-image (fn [url] (swap! calls inc) (Thread/sleep 100) (.put ts url img))]
+        (let [latch (java.util.concurrent.CountDownLatch. 5)
+              results (atom [])]
+          (dotimes [i 5]
+            (image-async "http://icon/shared" (fn [x] (swap! results conj x) (.countDown latch))
+                         (if (zero? i) :prefetch :visible)))
+          (is (.await latch 5 java.util.concurrent.TimeUnit/SECONDS))
+          (is (= 1 @calls))
+          (is (= (repeat 5 "http://icon/shared") (map #(.url ^ThumbnailStore$Handle %) @results)))
+          (is (= 1 (.pinned ts)))
+          (doseq [^ThumbnailStore$Handle h @results] (.release h))
+          (is (zero? (.pinned ts))))))
+    (testing "a failed URL is not fetched again while backing off"
+      (reset! calls 0)
+      (with-redefs [nico.image/load-image (fn [url] (swap! calls inc) nil)]
+        (is (nil? (image "http://icon/missing")))
+        (is (nil? (image "http://icon/missing")))
+        (is (= 1 @calls))))))
+
+(deftest with-image-test
+  (let [ts (ThumbnailStore. 64 64 (* 4 64 64 4))
+        img (BufferedImage. 64 64 BufferedImage/TYPE_INT_ARGB)]
+    (with-redefs [nico.image/load-image (fn [url] (.put ts url img))]
+      (testing "the handle is released after the body"
+        (is (= "http://icon/scoped" (with-image [h "http://icon/scoped"]
+                                      (is (= 1 (.pinned ts)))
+                                      (.url ^ThumbnailStore$Handle h))))
+        (is (zero? (.pinned ts))))
+      (testing "the handle is released when the body throws"
+        (is (thrown? RuntimeException (with-image [h "http://icon/thrown"] (throw (RuntimeException. "test")))))
+        (is (zero? (.pinned ts)))))))
+
+(deftest shared-thumbnail-test
+  (let [url "http://icon/shared-panels"
+        decodes (atom 0)
+        img (BufferedImage. 64 64 BufferedImage/TYPE_INT_ARGB)]
+    (with-redefs [nico.image/image-from-disk (fn [_] nil)
+                  nico.image/image-from-net (fn [_] (swap! decodes inc) img)]
+      (let [before (:decodes (stats))
+            p1 (PgmPanel/create "lv1" "title" "http://live/lv1" "desc" "owner" "comm" "co1" 0 0 0 (image url))
+            p2 (PgmPanel/create "lv2" "title" "http://live/lv2" "desc" "owner" "comm" "co1" 0 0 0 (cached url))
+            alert (AlertPanel/create "msg" [(image url)])]
+        (is (= 1 @decodes))
+        (testing "releasing a panel or closing an alert keeps the thumbnail for the others"
+          (.release p1)
+          (.dispose alert)
+          (is (cached? url))
+          (is (= url (.url (.getThumbnail p2)))))
+        (testing "the thumbnail is reused after all panels let go"
+          (.dispose p2)
+          (let [^ThumbnailStore$Handle h (image url)]
+            (is (= url (.url h)))
+            (.release h)))
+        (is (= 1 @decodes))
+        (is (= 1 (- (:decodes (stats)) before)))))))
@@ -0,0 +1,37 @@
+;; -*- coding: utf-8-unix -*-
+(ns nico.net-test
+  (:require [clojure.test :refer :all]
+            [nico.net :refer :all])
+  (:import [java.io BufferedOutputStream DataOutputStream File FileOutputStream]
+           [java.util.zip GZIPOutputStream]
+           [nico.net AlertConnection]))
+
+(defn- write-archive [^File f recs]
+  (with-open [dos (-> f FileOutputStream. BufferedOutputStream. GZIPOutputStream. DataOutputStream.)]
+    (doseq [rec recs]
+      (@#'nico.net/write-record! dos rec))))
+
+(deftest replay-test
+  (let [f (doto (File/createTempFile "nico-net" ".gz") .deleteOnExit)
+        t 1400000000000
+        url "http://live.nicovideo.jp/recent/rss?p=1"]
+    (write-archive f [{:kind 1 :time t :url url :status 200 :etag "e1" :body (.getBytes "first" "UTF-8")}
+                      {:kind 2 :time t :body (.getBytes "<chat>1,co1,2</chat>\0" "UTF-8")}
+                      {:kind 1 :time (+ t 60000) :url url :status 304 :body (byte-array 0)}])
+    (try
+      (start-replay! (.getPath f) 1)
+      (testing "clock starts from the first record"
+        (is (<= t (now) (+ t 1000))))
+      (testing "http"
+        (let [{:keys [status headers body]} @(http-get url {:as :text})]
+          (is (= 200 status))
+          (is (= "e1" (:etag headers)))
+          (is (= "first" body)))
+        (is (= 404 (:status @(http-get "http://live.nicovideo.jp/unknown" {:as :text})))))
+      (testing "alert stream"
+        (with-open [^AlertConnection conn (alert-connection "localhost" 2525 1000)]
+          (is (= "<chat>1,co1,2</chat>\0" (slurp (.in conn) :encoding "UTF-8"))))
+        (is (thrown? java.io.IOException (alert-connection "localhost" 2525 1000))))
+      (finally
+        (stop-capture!)))
+    (is (< (- (System/currentTimeMillis) 1000) (now)))))
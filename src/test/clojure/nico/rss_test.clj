@@ -1,11 +1,15 @@
 ;; -*- coding: utf-8-unix -*-
 (ns nico.rss-test
   (:require [clojure.test :refer :all]
+            [clojure.core.async :as ca]
             [clojure.java.io :as io]
             [clojure.xml :as xml]
             [clojure.tools.logging :as log]
+            [nico.config :as config]
             [nico.string :as s]
-            [nico.rss :refer :all]))
+            [nico.rss :refer :all])
+  (:import [nico.rss RssParser RssParser$Handler RssParser$Item XmlReader]
+           [org.htmlcleaner HtmlCleaner]))
 
 (defn rsss [n]
   (->> (range 1 (inc n))
@@ -19,6 +23,17 @@
   (extract rx ({:official create-official-pgm
                 :user create-pgm} type)))
 
+(defn parse-pgms
+  "RssParserで[総番組数 番組情報]を得る。"
+  [url & {:keys [type] :or {type :user}}]
+  (when (.exists (io/file url))
+    (with-open [rdr (XmlReader. (io/input-stream url))]
+      (parse-rss rdr ({:official item->official-pgm
+                       :user item->pgm} type)))))
+
+(defn- strip-fetched [pgms]
+  (map #(dissoc % :fetched_at :updated_at) pgms))
+
 (defn- pgm-test [rx & {:keys [type print? trace?] :or {type :user print? true trace? false} :as opts}]
   (let [pgms (extract-pgms rx :type type)]
     (when print?
@@ -44,3 +59,322 @@
       (pgm-test orx :type :official :print? false)
       (doseq [rx rxs]
         (pgm-test rx :type :user :print? false)))))
+
+(deftest ^{:rss true :data true} parse-rss-equivalence-test
+  (let [get-programs-count @#'nico.rss/get-programs-count]
+    (testing "official"
+      (let [url (io/resource "rss")]
+        (is (= (strip-fetched (extract-pgms (rss-xml url) :type :official))
+               (strip-fetched (second (parse-pgms url :type :official)))))))
+    (testing "user"
+      (doseq [url (rsss 180)]
+        (let [rx (rss-xml url)
+              [total pgms] (parse-pgms url :type :user)]
+          (is (= (get-programs-count rx) total) (str url))
+          (is (= (strip-fetched (extract-pgms rx :type :user)) (strip-fetched pgms)) (str url)))))))
+
+(deftest ^{:stress true :rss true :data true} parse-rss-comparison-test
+  (let [TIMES 100
+        urls (rsss 180)
+        ;; どちらも文字列の読み込みからの時間を計る
+        srcs (doall (map slurp urls))
+        dom (fn [] (doseq [src srcs]
+                     (doall (extract-pgms (-> src s/utf8stream xml/parse) :type :user))))
+        stax (fn [] (doseq [src srcs]
+                      (with-open [rdr (XmlReader. (s/utf8stream src))]
+                        (parse-rss rdr item->pgm))))
+        measure (fn [f]
+                  (f) ; warm up
+                  (let [a (System/nanoTime)]
+                    (dotimes [_ TIMES] (f))
+                    (/ (- (System/nanoTime) a) 1000000.0 TIMES (count srcs))))]
+    (log/infof "clojure.xml + zipper: %.3f msec/page" (measure dom))
+    (log/infof "RssParser (StAX):     %.3f msec/page" (measure stax))))
+
+(deftest schedule-test
+  (let [update-sched @#'nico.rss/update-sched
+        next-wait @#'nico.rss/next-wait
+        due-cats @#'nico.rss/due-cats
+        opts {:target-new 10 :min-wait-sec 30 :max-wait-sec 300}
+        now 1000000
+        s1 (update-sched {} {:common 50 :r18 3} now opts)
+        s2 (update-sched s1 {:common 20 :r18 0} (+ now 100000) opts)]
+    (testing "the first cycle has no rate"
+      (is (nil? (get-in s1 [:common :rate])))
+      (is (= 30 (next-wait s1 now opts))))
+    (testing "busy categories are fetched sooner"
+      (is (< (get-in s2 [:common :due]) (get-in s2 [:r18 :due])))
+      (is (= 50 (next-wait s2 (+ now 100000) opts)))
+      (is (= (+ now 100000 300000) (get-in s2 [:r18 :due]))))
+    (testing "due categories"
+      ;; 一度も取得していないカテゴリも対象になる
+      (is (= #{:common :try :live :req :face :totu} (set (keys (due-cats s2 (+ now 150000))))))
+      (is (= 7 (count (due-cats {} now)))))))
+
+(deftest full-cycle-test
+  (let [full-cycle? @#'nico.rss/full-cycle?
+        opts {:incremental true :full-cycle 10 :full-interval-sec 600}
+        now 10000000]
+    (testing "every full-cycle cycles"
+      (is (full-cycle? 1 now now opts))
+      (is (not (full-cycle? 2 now now opts)))
+      (is (full-cycle? 11 now now opts)))
+    (testing "after full-interval-sec even when cycles are sparse"
+      (is (not (full-cycle? 5 now (- now 599000) opts)))
+      (is (full-cycle? 5 now (- now 600000) opts)))
+    (testing "every cycle without incremental"
+      (is (full-cycle? 2 now now (assoc opts :incremental false))))))
+
+(deftest end-detection-test
+  (let [forget-unseen! @#'nico.rss/forget-unseen!
+        fetch @#'nico.rss/fetch
+        known (atom {"lv1" [0 3] "lv2" [0 2] "lv3" [0 1]})]
+    (testing "programs not seen in a full cycle have ended"
+      (is (= #{"lv2" "lv3"} (set (forget-unseen! known 3))))
+      (is (= #{"lv1"} (set (keys @known)))))
+    (testing "official programs missing from the latest RSS have ended"
+      (let [pgms (atom ["lv1" "lv2"])
+            ctx {:official (atom #{})}
+            cmds (fn [] (:cmd-db (fetch ctx)))]
+        (with-redefs [nico.rss/get-programs-from-rss (fn [_] (map #(hash-map :id %) @pgms))
+                      nico.scrape/scrape-total (fn [] 0)]
+          (is (not-any? #(= :end-pgms (:cmd %)) (cmds)))
+          (reset! pgms ["lv2" "lv3"])
+          (is (= [{:cmd :end-pgms :ids ["lv1"]}] (filter #(= :end-pgms (:cmd %)) (cmds)))))))
+    (testing "ended programs are noticed well within the retention"
+      (let [{:keys [full-interval-sec max-wait-sec]} (config/default-rss-config)]
+        ;; 全ページの取得は最長でfull-interval-sec + max-wait-secごとなので、その間に現れた番組を保持期間で消さない
+        (is (< (* 1000 (+ full-interval-sec max-wait-sec)) config/PGM-RETENTION-MSEC))))))
+
+(defn- rss-page
+  "番組を1つだけ含むユーザー生放送RSSを返す。"
+  [id]
+  (str "<?xml version=\"1.0\" encoding=\"utf-8\"?>"
+       "<rss xmlns:nicolive=\"http://live.nicovideo.jp/\" xmlns:media=\"http://search.yahoo.com/mrss/\"><channel>"
+       "<nicolive:total_count>1</nicolive:total_count>"
+       "<item><title>title</title><guid>" id "</guid><pubDate>Sat, 17 Oct 2015 12:00:00 +0900</pubDate>"
+       "<description>desc</description><category>一般</category>"
+       "<link>http://live.nicovideo.jp/watch/" id "</link><media:thumbnail url=\"http://icon/1\"/>"
+       "<nicolive:owner_name>owner</nicolive:owner_name><nicolive:member_only>false</nicolive:member_only>"
+       "<nicolive:type>community</nicolive:type><nicolive:community_name>comm</nicolive:community_name>"
+       "<nicolive:community_id>co1</nicolive:community_id></item></channel></rss>"))
+
+(deftest conditional-fetch-test
+  (let [fetch @#'nico.rss/fetch
+        requests (atom [])
+        ctx (fn [incr] {:limiter (nico.net/token-bucket 1000.0 1000) :max-pages 1 :known (atom {}) :incr incr :ncycle 1})]
+    ;; 前回から内容が変わっていないものとして、条件付きGETには常に304を返す
+    (with-redefs [nico.net/http-get (fn [url & [opts]]
+                                      (swap! requests conj (:conditional opts))
+                                      (future (if (:conditional opts)
+                                                {:status 304}
+                                                {:status 200 :body (s/utf8stream (rss-page "lv1"))})))]
+      (testing "a full cycle fetches pages without validators"
+        (let [{:keys [npgms cats]} (fetch (ctx false) 1 {:common [0 0]})]
+          (is (= [false] @requests))
+          (is (= 1 npgms))
+          (is (= [1 1 2] (:common cats)))))
+      (testing "an incremental cycle skips unchanged pages"
+        (reset! requests [])
+        (let [{:keys [npgms cats]} (fetch (ctx true) 1 {:common [0 0]})]
+          (is (= [true] @requests))
+          (is (zero? npgms))
+          (is (= [0 0 2] (:common cats))))))))
+
+(deftest plan-pages-test
+  (let [plan-pages @#'nico.rss/plan-pages
+        fetch @#'nico.rss/fetch
+        urls (atom #{})]
+    (testing "pages are estimated from each category's own progress"
+      (is (= 1 (plan-pages [0 0] 1 3)))
+      (is (= 0 (plan-pages [12 12] 2 3)))
+      (is (= 1 (plan-pages [10 12] 2 3)))
+      (is (= 3 (plan-pages [10 100] 2 3))))
+    (with-redefs [nico.net/http-get (fn [url & _]
+                                      (swap! urls conj url)
+                                      (future {:status 200 :body (s/utf8stream (rss-page "lv1"))}))]
+      (testing "a nearly finished category is not fetched as far as a busy one"
+        (let [{:keys [page cats]} (fetch {:limiter (nico.net/token-bucket 1000.0 1000) :max-pages 3 :known (atom {})
+                                          :incr false :ncycle 1}
+                                         2 {:common [10 100 2] :try [10 12 2] :live [5 5 2]})]
+          (is (= #{"http://live.nicovideo.jp/recent/rss?tab=common&p=2"
+                   "http://live.nicovideo.jp/recent/rss?tab=common&p=3"
+                   "http://live.nicovideo.jp/recent/rss?tab=common&p=4"
+                   "http://live.nicovideo.jp/recent/rss?tab=try&p=2"}
+                 @urls))
+          (is (= 4 page))
+          (is (= [5 5 2] (:live cats)))
+          (is (= 3 (nth (:try cats) 2)))
+          (is (= 5 (nth (:common cats) 2))))))))
+
+(deftest fetch-thread-test
+  (let [oc-ui (ca/chan 16)
+        oc-db (ca/chan 16)
+        threads (atom [])]
+    ;; 公式放送は1件取得でき、ユーザー生放送の取得は失敗する
+    (with-redefs [nico.rss/fetch (fn [ctx & [page]]
+                                   (swap! threads conj (.getName (Thread/currentThread)))
+                                   (if page
+                                     (throw (Exception. "unreachable"))
+                                     {:page 0 :cats nil :result :success :npgms 1
+                                      :cmd-db {:cmd :add-pgms :pgms [] :force-search false}
+                                      :cmd-ui {:status :fetching-rss :page 0 :acc 1 :total nil}}))]
+      (let [cc (boot oc-ui oc-db)
+            stopped (fn [] (loop []
+                             (let [[c _] (ca/alts!! [oc-ui (ca/timeout 5000)])]
+                               (if (or (nil? c) (= :stopped-rss (:status c))) c (recur)))))]
+        (ca/>!! cc {:cmd :act})
+        (testing "a failed fetch stops the fetcher"
+          (is (= "stopped by network error" (:reason (stopped)))))
+        (is (= :add-pgms (:cmd (ca/poll! oc-db))))
+        (testing "fetching does not run on the go dispatch threads"
+          (is (= 2 (count @threads)))
+          (is (not-any? #(.startsWith ^String % "async-dispatch") @threads)))
+        (ca/close! cc)))))
+
+(defn- read-all
+  "rdrをchunk文字ずつ読み切った文字列を返す。chunkが0ならread()で1文字ずつ読む。"
+  [^java.io.Reader rdr chunk]
+  (let [sb (StringBuilder.)]
+    (if (zero? chunk)
+      (loop [c (.read rdr)]
+        (when-not (neg? c)
+          (.append sb (char c))
+          (recur (.read rdr))))
+      (let [buf (char-array chunk)]
+        (loop [n (.read rdr buf 0 chunk)]
+          (when-not (neg? n)
+            (.append sb buf 0 n)
+            (recur (.read rdr buf 0 chunk))))))
+    (.toString sb)))
+
+(deftest xml-reader-test
+  (let [src "a\u0001b😀c\u0008\tx\uFFFE\uFFFFy\n😁😂"
+        expected "ab😀c\txy\n😁😂"]
+    (doseq [chunk (range 0 10)]
+      (testing (str "chunk " chunk)
+        (is (= expected (read-all (XmlReader. (s/utf8stream src)) chunk)))))
+    (testing "never returns 0"
+      (is (= -1 (.read (XmlReader. (s/utf8stream "\u0001\u0002")) (char-array 4) 0 4))))))
+
+(defn- legacy-xml-reader
+  "readのたびに一時バッファを確保して1文字ずつ検査する、以前のXmlReaderと同じ処理。"
+  [is]
+  (let [valid? (fn [^long c]
+                 (or (= c 0x9) (= c 0xA) (= c 0xD)
+                     (<= 0x20 c 0xD7FF) (<= 0xE000 c 0xFFFD) (<= 0x10000 c 0x10FFFF)))]
+    (proxy [java.io.InputStreamReader] [is "UTF-8"]
+      (read
+        ([] (loop [c (int (proxy-super read))]
+              (if (or (neg? c) (valid? c)) c (recur (int (proxy-super read))))))
+        ([^chars cbuf offset length]
+         (let [offset (int offset) length (int length)
+               tbuf (char-array length)
+               len (int (proxy-super read tbuf 0 length))]
+           (if (pos? len)
+             (loop [i 0 pos 0]
+               (if (< i len)
+                 (let [c (aget tbuf i)]
+                   (if (valid? (int c))
+                     (do (aset cbuf (+ offset pos) c) (recur (inc i) (inc pos)))
+                     (recur (inc i) pos)))
+                 pos))
+             len)))))))
+
+(deftest ^{:stress true :rss true} xml-reader-throughput-test
+  (let [TIMES 20
+        unit "<description>ニコニコ生放送 test 配信中です\u0001 &amp; よろしく</description>\n"
+        src (.getBytes ^String (apply str (repeat 100000 unit)) "UTF-8")
+        measure (fn [create]
+                  (let [f #(read-all (create (java.io.ByteArrayInputStream. src)) 8192)]
+                    (f) ; warm up
+                    (let [a (System/nanoTime)]
+                      (dotimes [_ TIMES] (f))
+                      (/ (* (alength src) TIMES 1000.0) (- (System/nanoTime) a)))))]
+    (is (= (read-all (legacy-xml-reader (java.io.ByteArrayInputStream. src)) 8192)
+           (read-all (XmlReader. (java.io.ByteArrayInputStream. src)) 8192)))
+    (log/infof "InputStreamReader: %.1f MB/s" (measure #(java.io.InputStreamReader. ^java.io.InputStream % "UTF-8")))
+    (log/infof "legacy XmlReader:  %.1f MB/s" (measure legacy-xml-reader))
+    (log/infof "XmlReader:         %.1f MB/s" (measure #(XmlReader. ^java.io.InputStream %)))))
+
+(deftest html->text-test
+  (are [expected src] (= expected (s/html->text src))
+       "" nil
+       "" " \n　"
+       "a&b" "a&amp;b"
+       "bold text more　x" "&lt;b&gt;bold&lt;/b&gt;  text\n\nmore　　x"
+       "x y" "<!-- c -->x <a href=\"/a>b\">y</a>"
+       "1 < 2" "1 < 2"
+       "AB&#;&foo;" "&#x41;&#66;&#;&foo;"
+       "😀 " "&#x1F600;<br/> "))
+
+(defn- descriptions
+  "RSSのitemのdescriptionを生のまま(文字参照は未展開)集める。"
+  [url]
+  (when (.exists (io/file url))
+    (with-open [rdr (XmlReader. (io/input-stream url))]
+      (let [ds (transient [])]
+        (RssParser/parse rdr (reify RssParser$Handler
+                               (totalCount [_ _])
+                               (item [_ item] (conj! ds (.getDescription ^RssParser$Item item)))))
+        (persistent! ds)))))
+
+(defn- old-html->text
+  "以前のcreate-pgmと同じく、unescape、HtmlCleaner、del-dupを順に適用する。"
+  [^HtmlCleaner cleaner d]
+  (if d
+    (-> d
+        (s/unescape :html)
+        (#(when-not (clojure.string/blank? %) (-> (.clean cleaner ^String %) .getText .toString)))
+        s/del-dup)
+    ""))
+
+(deftest html->text-difference-test
+  (let [cleaner (HtmlCleaner.)]
+    (testing "a > in a quoted attribute value does not end the tag"
+      (is (= "y\">l" (old-html->text cleaner "<a href=\"x>y\">l")))
+      (is (= "l" (s/html->text "<a href=\"x>y\">l"))))
+    (testing "text after a processing instruction or a declaration is kept"
+      (is (= "a" (old-html->text cleaner "a<?php ?>b")))
+      (is (= "ab" (s/html->text "a<?php ?>b")))
+      (is (= "a" (old-html->text cleaner "a<!DOCTYPE html>b")))
+      (is (= "ab" (s/html->text "a<!DOCTYPE html>b"))))))
+
+(deftest ^{:rss true :data true} html->text-equivalence-test
+  (let [cleaner (HtmlCleaner.)]
+    (doseq [url (cons (io/resource "rss") (rsss 180))
+            d (descriptions url)]
+      (is (= (old-html->text cleaner d) (s/html->text d)) (str url)))))
+
+(deftest ^{:stress true :rss true :data true} html->text-comparison-test
+  (let [TIMES 100
+        cleaner (HtmlCleaner.)
+        ds (doall (mapcat descriptions (rsss 180)))
+        measure (fn [f]
+                  (doseq [d ds] (f d)) ; warm up
+                  (let [a (System/nanoTime)]
+                    (dotimes [_ TIMES] (doseq [d ds] (f d)))
+                    (/ (- (System/nanoTime) a) 1000.0 TIMES (count ds))))]
+    (log/infof "unescape + HtmlCleaner + del-dup: %.3f usec/description" (measure #(old-html->text cleaner %)))
+    (log/infof "html->text:                       %.3f usec/description" (measure s/html->text))))
+
+(deftest pooled-test
+  (let [a (s/pooled (String. "pooled-test"))
+        b (s/pooled (String. "pooled-test"))]
+    (is (identical? a b))
+    (is (= "" (s/pooled nil)))
+    (is (<= 1 (s/sweep-pool! (inc (System/currentTimeMillis)))))
+    (is (not (identical? a (s/pooled (String. "pooled-test")))))))
+
+(deftest ^{:stress true :rss true :data true} pooled-saving-test
+  ;; 全ページを2サイクル分読み込み、プール対象フィールドの文字列がどれだけ共有されたかを見積もる
+  (let [fields [:category :thumbnail :owner_name :comm_name :comm_id]
+        pgms (doall (for [_ (range 2) url (rsss 180) pgm (second (parse-pgms url))] pgm))
+        strs (for [pgm pgms f fields :let [^String v (f pgm)] :when v] v)
+        size (fn [^String v] (+ 40 (* 2 (.length v)))) ; Stringと配列のヘッダを含めた概算バイト数
+        uniq (->> strs (map #(vector (System/identityHashCode %) %)) (into {}) vals)
+        total (reduce + (map size strs))
+        shared (reduce + (map size uniq))]
+    (log/infof "pooled fields: %d strings / %d instances, %d KB -> %d KB (pool size: %d)"
+               (count strs) (count uniq) (quot total 1024) (quot shared 1024) (s/pool-size))
+    (is (< shared total))))
@@ -7,8 +7,18 @@
             [seesaw.core :as sc]
             [seesaw.icon :as si])
   (:import [javax.imageio ImageIO]
+           [nico.image ThumbnailStore]
            [nico.ui AlertPanel]))
 
+(defn- thumbnails
+  "同じサムネイルを参照するn個のハンドルを返す。保存時に得たハンドルは手放す。"
+  [n]
+  (let [ts (ThumbnailStore. 64 64 (* 64 64 4))
+        h (.put ts "noimage.png" (ImageIO/read (io/resource "noimage.png")))
+        hs (doall (map (fn [_] (.retain h)) (range n)))]
+    (.release h)
+    hs))
+
 (defn- wait-closing [frame]
   (let [p (promise)]
     (sc/listen frame :window-closing (fn [_] (deliver p true)))
@@ -21,7 +31,7 @@
 
 (deftest ^:gui alertpanel-test
   (let [msg "Added 10 programs to \"車載\""
-        icns (map (fn [i] (ImageIO/read (io/resource "noimage.png"))) (range 10))]
+        icns (thumbnails 10)]
     (wait-closing
      (sc/frame
       :title "testing variable AlertPanel"
@@ -31,7 +41,7 @@
 
 (deftest ^:gui alertpanel-fixed-test
   (let [msg "Added 10 programs to \"車載\""
-        icns (map (fn [i] (ImageIO/read (io/resource "noimage.png"))) (range 10))]
+        icns (thumbnails 10)]
     (wait-closing
      (sc/frame
       :title "testing fixed AlertPanel"